@@ -3,11 +3,28 @@ package eu.jergus.cryperm;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
-import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import eu.jergus.cryperm.crypto.Paillier;
+import eu.jergus.cryperm.crypto.RandomnessPool;
+import eu.jergus.cryperm.crypto.TranscriptHash;
 import eu.jergus.cryperm.math.Numbers;
 import eu.jergus.cryperm.math.Permutation;
 import eu.jergus.cryperm.math.Polynomial;
@@ -16,6 +33,8 @@ import eu.jergus.crypto.RemoteParticipant;
 import eu.jergus.crypto.Protocol;
 import eu.jergus.crypto.exception.DeadObjectException;
 import eu.jergus.crypto.exception.ProtocolException;
+import eu.jergus.crypto.util.DataBackedObject;
+import eu.jergus.crypto.util.Keys;
 import eu.jergus.crypto.util.Log;
 
 /**
@@ -29,9 +48,60 @@ public class Cryperm extends Protocol {
 	private static final int DEFAULT_KEY_SIZE = 256;
 	private static final int DEFAULT_PROOF_ITERATIONS = 16;
 
+	/**
+	 * Number of seconds an idle worker thread is kept.
+	 */
+	private static final int WORKER_KEEP_ALIVE = 5;
+
+	/**
+	 * Names of all the protocol values.
+	 */
+	private static final long KEY = Keys.name("key");
+	private static final long N = Keys.name("n");
+	private static final long PUBLIC_KEYS = Keys.name("public_keys");
+	private static final long CHALLENGE = Keys.name("challenge");
+	private static final long CHALLENGE_X = Keys.name("challenge_x");
+	private static final long CHALLENGE_Y = Keys.name("challenge_y");
+	private static final long RESPONSE_X = Keys.name("response_x");
+	private static final long RESPONSE_Y = Keys.name("response_y");
+	private static final long IS_KEY_VALID = Keys.name("is_key_valid");
+	private static final long IS_ZKP_VALID = Keys.name("is_zkp_valid");
+	private static final long PERMUTED = Keys.name("permuted");
+	private static final long ZKP_MATRICES = Keys.name("zkp_matrices");
+	private static final long ZKP_PERMS = Keys.name("zkp_perms");
+	private static final long ZKP_POLYS = Keys.name("zkp_polys");
+	private static final long ZKP_YS = Keys.name("zkp_ys");
+	private static final long ELEMENTS = Keys.name("elements");
+	private static final long PERMUTATION_READY = Keys.name("permutation_ready");
+	private static final long SECRET = Keys.name("secret");
+
+
 	private final int keySize;
 	private final int proofIterations;
 
+	/**
+	 * Number of worker threads used for the computations.
+	 */
+	private final int workers;
+
+	/**
+	 * Pool of worker threads (null with a single worker). Idle workers exit
+	 * after a few seconds, so a finished protocol keeps no threads; the pool
+	 * is shut down when the protocol dies.
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * Security parameter of the batch proof verification (0 if every value is
+	 * checked separately).
+	 */
+	private final int batchSecurity;
+
+	/**
+	 * Source of the random exponents for batch verification.
+	 */
+	private final SecureRandom batchRandom = new SecureRandom();
+
 
 	/**
 	 * Number of participants required to uncover a permutation element.
@@ -53,6 +123,11 @@ public class Cryperm extends Protocol {
 	 */
 	private boolean[] uncovered;
 
+	/**
+	 * Pools of randomizing values for each participant's public key.
+	 */
+	private RandomnessPool[] pools;
+
 
 	/**
 	 * @param localId        ID of the local participant (must be unique)
@@ -91,14 +166,119 @@ public class Cryperm extends Protocol {
 			int keySize,
 			int proofIterations) {
 
-		super(localId, inputStreams, outputStreams);
+		this(localId, inputStreams, outputStreams, k, size, keySize, proofIterations,
+				Runtime.getRuntime().availableProcessors(), 0);
+	}
+
+
+	/**
+	 * @param localId        ID of the local participant (must be unique)
+	 * @param inputStreams   streams to receive data from remote participants
+	 * @param outputStreams  streams to send data to remote participants
+	 * @param k              minimum number of participants required to uncover a permutation element
+	 * @param size           size of the permutation
+	 * @param keySize        number of bits in the public key prime factors
+	 * @param proofIterations  number of iterations in all the proofs
+	 * @param workers        number of worker threads used for the computations
+	 *                       (with 1, the permutation is computed in the protocol thread)
+	 * @param batchSecurity  if positive, verify the permutation proofs in batch
+	 *                       mode, with this many bits of security (see
+	 *                       {@link #verifyColumn})
+	 */
+	public Cryperm(
+			int localId,
+			InputStream[] inputStreams,
+			OutputStream[] outputStreams,
+			int k,
+			int size,
+			int keySize,
+			int proofIterations,
+			int workers,
+			int batchSecurity) {
+
+		this(localId, inputStreams, outputStreams, k, size, keySize, proofIterations,
+				workers, batchSecurity, null);
+	}
+
+
+	/**
+	 * @param localId        ID of the local participant (must be unique)
+	 * @param inputStreams   streams to receive data from remote participants
+	 * @param outputStreams  streams to send data to remote participants
+	 * @param k              minimum number of participants required to uncover a permutation element
+	 * @param size           size of the permutation
+	 * @param keySize        number of bits in the public key prime factors
+	 * @param proofIterations  number of iterations in all the proofs
+	 * @param workers        number of worker threads used for the computations
+	 *                       (with 1, the permutation is computed in the protocol
+	 *                       thread, and the uncover operations run on the
+	 *                       participant executor)
+	 * @param batchSecurity  if positive, verify the permutation proofs in batch
+	 *                       mode, with this many bits of security (see
+	 *                       {@link #verifyColumn})
+	 * @param participantExecutor  executor for the communication with the
+	 *                       individual participants, or null for the default
+	 *                       one (see {@link Protocol#runWithEach})
+	 */
+	public Cryperm(
+			int localId,
+			InputStream[] inputStreams,
+			OutputStream[] outputStreams,
+			int k,
+			int size,
+			int keySize,
+			int proofIterations,
+			int workers,
+			int batchSecurity,
+			Executor participantExecutor) {
+
+		super(localId, inputStreams, outputStreams, participantExecutor, false);
+
+		if (workers < 1) {
+			throw new IllegalArgumentException("At least one worker thread is required.");
+		}
+		if (batchSecurity < 0) {
+			throw new IllegalArgumentException("Batch security parameter must not be negative.");
+		}
 
 		this.k = k;
 		this.size = size;
 		this.keySize = keySize;
 		this.proofIterations = proofIterations;
+		this.batchSecurity = batchSecurity;
+		this.workers = workers;
+
+		if (workers > 1) {
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers,
+					WORKER_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+					new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			pool.allowCoreThreadTimeOut(true);
+			executor = pool;
+		} else {
+			executor = null;
+		}
 
 		uncovered = new boolean[size];
+		pools = new RandomnessPool[n];
+
+		start();
+	}
+
+
+	/**
+	 * Marks the protocol as dead and shuts down the worker pool.
+	 */
+	public void kill() {
+		super.kill();
+		if (executor != null) {
+			executor.shutdown();
+		}
 	}
 
 
@@ -115,36 +295,43 @@ public class Cryperm extends Protocol {
 		Log.log(Log.INFO, "Using modulus "+mod+" for Shamir's scheme.");
 
 		// generate private key
-		set("key", Paillier.generateKey(keySize));
-		set("n", get("key[0]"));
-		broadcast("n");
+		set(KEY, Paillier.generateKey(keySize));
+		set(N, get(Keys.index(KEY, 0)));
+		broadcast(N);
+		pool(localId);
 
 		runWithEach(new ParticipantAction() {
 			public void run(RemoteParticipant p) {
 				// wait for n, then compute the remaining key parts
-				set("public_keys["+p.getId()+"]", Paillier.keyToArray(p.get("n")));
+				set(Keys.index(PUBLIC_KEYS, p.getId()), Paillier.keyToArray(p.get(N)));
+				pool(p.getId());
 
 				// request proof of correctness
-				for (int i = 0; i < proofIterations; ++i) {
-					BigInteger x = Numbers.random(p.get("n"));
-					BigInteger y = Numbers.randomRelativelyPrime(p.get("n"));
-					BigInteger c = Paillier.encrypt(x, y, publicKey(p.getId()));
-					set("challenge_x["+p.getId()+"]["+i+"]", x);
-					set("challenge_y["+p.getId()+"]["+i+"]", y);
-					set("challenge["+p.getId()+"]["+i+"]", c);
-					p.send("challenge["+p.getId()+"]["+i+"]");
+				p.beginBatch();
+				try {
+					for (int i = 0; i < proofIterations; ++i) {
+						BigInteger x = Numbers.random(p.get(N));
+						BigInteger y = Numbers.randomRelativelyPrime(p.get(N));
+						BigInteger c = Paillier.encrypt(x, y, publicKey(p.getId()));
+						set(Keys.index(CHALLENGE_X, p.getId(), i), x);
+						set(Keys.index(CHALLENGE_Y, p.getId(), i), y);
+						set(Keys.index(CHALLENGE, p.getId(), i), c);
+						p.send(Keys.index(CHALLENGE, p.getId(), i));
+					}
+				} finally {
+					p.endBatch();
 				}
 
 				// verify the proof
 				boolean ok = true;
 				for (int i = 0; i < proofIterations; ++i) {
-					ok &= Arrays.equals(get("challenge_x["+p.getId()+"]", proofIterations),
-					                    p.get("response_x["+localId+"]", proofIterations));
-					ok &= Arrays.equals(get("challenge_y["+p.getId()+"]", proofIterations),
-					    		        p.get("response_y["+localId+"]", proofIterations));
+					ok &= Arrays.equals(get(Keys.index(CHALLENGE_X, p.getId()), proofIterations),
+					                    p.get(Keys.index(RESPONSE_X, localId), proofIterations));
+					ok &= Arrays.equals(get(Keys.index(CHALLENGE_Y, p.getId()), proofIterations),
+					    		        p.get(Keys.index(RESPONSE_Y, localId), proofIterations));
 				}
 				if (ok) {
-					set("is_key_valid["+p.getId()+"]", BigInteger.ONE);
+					set(Keys.index(IS_KEY_VALID, p.getId()), BigInteger.ONE);
 				} else {
 					Log.log(Log.WARN, "#"+p.getId()+" failed to prove key correctness.");
 					kill();
@@ -155,14 +342,18 @@ public class Cryperm extends Protocol {
 		// prove public key correctness to everyone
 		runWithEach(new ParticipantAction() {
 			public void run(RemoteParticipant p) {
-				for (int i = 0; i < proofIterations; ++i) {
-					BigInteger c = p.get("challenge["+localId+"]["+i+"]");
-					BigInteger x = Paillier.decrypt(c, secretKey());
-					BigInteger y = Paillier.decrypt2(c, secretKey());
-					set("response_x["+p.getId()+"]["+i+"]", x);
-					set("response_y["+p.getId()+"]["+i+"]", y);
-					p.send("response_x["+p.getId()+"]["+i+"]");
-					p.send("response_y["+p.getId()+"]["+i+"]");
+				p.beginBatch();
+				try {
+					for (int i = 0; i < proofIterations; ++i) {
+						BigInteger c = p.get(Keys.index(CHALLENGE, localId, i));
+						BigInteger x = Paillier.decrypt(c, secretKey());
+						BigInteger y = Paillier.decrypt2(c, secretKey());
+						set(Keys.index(RESPONSE_X, p.getId(), i), x);
+						set(Keys.index(RESPONSE_Y, p.getId(), i), y);
+						p.send(Keys.index(RESPONSE_X, p.getId(), i), Keys.index(RESPONSE_Y, p.getId(), i));
+					}
+				} finally {
+					p.endBatch();
 				}
 			};
 		});
@@ -171,7 +362,7 @@ public class Cryperm extends Protocol {
 		runWithEach(new ParticipantAction() {
 			public void run(RemoteParticipant p) {
 				if (verifyProof(p)) {
-					set("is_zkp_valid["+p.getId()+"]", BigInteger.ONE);
+					set(Keys.index(IS_ZKP_VALID, p.getId()), BigInteger.ONE);
 				} else {
 					Log.log(Log.WARN, "#"+p.getId()+" failed to prove permutation correctness.");
 					kill();
@@ -180,66 +371,75 @@ public class Cryperm extends Protocol {
 		});
 
 		// shuffle & mask
-		Permutation perm = new Permutation(size);
-		int[][] poly = new int[size][];
+		final Permutation perm = new Permutation(size);
+		final int[][] poly = new int[size][];
 		for (int i = 0; i < size; ++i) {
 			poly[i] = new Polynomial(mod, k, 0).values(n);
 		}
-		BigInteger[][] y = new BigInteger[size][n];
+		final BigInteger[][] y = new BigInteger[size][n];
 
-		BigInteger[][] elements, permuted;
+		BigInteger[][] elements;
 
 		if (localId % 2 == 0) {
 			// 1. receive
 			if (localId == 0) {
 				elements = generateInitialElements();
 			} else {
-				elements = participants[localId-1].get("permuted", size, n);
+				elements = participants[localId-1].get(PERMUTED, size, n);
 			}
 			// 2. shuffle
-			permuted = perm.apply(elements);
+			final BigInteger[][] permuted = perm.apply(elements);
 			// 3. mask & send
-			for (int i = 0; i < size; ++i) {
-				for (int j = 0; j < n; ++j) {
-					y[i][j] = Numbers.randomRelativelyPrime(publicKey(j)[0]);
-					set("permuted["+i+"]["+j+"]", mask(permuted[i][j], j, poly[i][j], y[i][j]));
-					broadcast("permuted["+i+"]["+j+"]");
+			parallelFor(size, new IndexAction() {
+				public void run(int i) {
+					BigInteger[] row = new BigInteger[n];
+					for (int j = 0; j < n; ++j) {
+						BigInteger[] nonce = pool(j).next();
+						y[i][j] = nonce[0];
+						row[j] = mask(permuted[i][j], j, poly[i][j], nonce);
+					}
+					set(Keys.index(PERMUTED, i), row);
+					broadcast(Keys.index(PERMUTED, i), n);
 				}
-			}
+			});
 		} else {
 			// 1. receive & mask
-			elements = new BigInteger[size][n];
-			permuted = new BigInteger[size][n];
-			for (int i = 0; i < size; ++i) {
-				for (int j = 0; j < n; ++j) {
-					elements[i][j] = participants[localId-1].get("permuted["+i+"]["+j+"]");
-					y[perm.rev(i)][j] = Numbers.randomRelativelyPrime(publicKey(j)[0]);
-					permuted[i][j] = mask(elements[i][j], j, poly[perm.rev(i)][j], y[perm.rev(i)][j]);
+			final BigInteger[][] received = new BigInteger[size][n];
+			final BigInteger[][] masked = new BigInteger[size][n];
+			parallelFor(size, new IndexAction() {
+				public void run(int i) {
+					for (int j = 0; j < n; ++j) {
+						received[i][j] = participants[localId-1].get(Keys.index(PERMUTED, i, j));
+						BigInteger[] nonce = pool(j).next();
+						y[perm.rev(i)][j] = nonce[0];
+						masked[i][j] = mask(received[i][j], j, poly[perm.rev(i)][j], nonce);
+					}
 				}
-			}
+			});
+			elements = received;
 			// 2. shuffle
-			permuted = perm.apply(permuted);
-			set("permuted", permuted);
+			BigInteger[][] permuted = perm.apply(masked);
+			set(PERMUTED, permuted);
 			// 3. send
-			broadcast("permuted", size, n);
+			broadcast(PERMUTED, size, n);
 		}
 
-		generateProof(elements, get("permuted", size, n), perm, poly, y);
+		generateProof(elements, get(PERMUTED, size, n), perm, poly, y);
 
 		// wait for all proofs to finish
 		for (int i = 0; i < n; ++i) {
 			if (i != localId) {
-				get("is_key_valid["+i+"]");
-				get("is_zkp_valid["+i+"]");
+				get(Keys.index(IS_KEY_VALID, i));
+				get(Keys.index(IS_ZKP_VALID, i));
 			}
 		}
 
 		if (localId == n-1) {
-			set("elements", get("permuted", size, n));
+			set(ELEMENTS, get(PERMUTED, size, n));
 		} else {
-			set("elements", participants[n-1].get("permuted", size, n));
+			set(ELEMENTS, participants[n-1].get(PERMUTED, size, n));
 		}
-		set("permutation_ready", BigInteger.ONE);
+		set(PERMUTATION_READY, BigInteger.ONE);
 		Log.log(Log.INFO, "Permutation ready.");
 	}
 
@@ -258,7 +458,7 @@ public class Cryperm extends Protocol {
 			}
 			uncovered[elementId] = true;
 		}
-		return uncoverElement(recipientId, elementId);
+		return await(uncoverElements(recipientId, new int[] {elementId}, null))[0];
 	}
 
 
@@ -266,95 +466,436 @@ public class Cryperm extends Protocol {
 	 * Uncovers the specified permutation element to the specified participant.
 	 */
 	public int uncover(int recipientId, int elementId) throws ProtocolException {
-		if (elementId >= size) {
-			throw new NoSuchElementException("Element "+elementId+" is not between 0 and size-1.");
+		return uncover(recipientId, new int[] {elementId})[0];
+	}
+
+
+	/**
+	 * Uncovers the specified permutation elements to the specified participant
+	 * in a single exchange.
+	 *
+	 * @return values of the elements (for the recipient), or an array of -1
+	 *         values (for all other participants)
+	 */
+	public int[] uncover(int recipientId, int[] elementIds) throws ProtocolException {
+		return await(uncoverAsync(recipientId, elementIds, null));
+	}
+
+
+	/**
+	 * Uncovers all remaining permutation elements to the specified participant
+	 * in a single exchange.
+	 *
+	 * @return values of the elements in the order of their IDs (for the
+	 *         recipient), or an array of -1 values (for all other participants)
+	 * @see #uncover(int, int[])
+	 */
+	public int[] uncoverAll(int recipientId) throws ProtocolException {
+		int[] elementIds;
+		synchronized (uncovered) {
+			int count = 0;
+			for (boolean u : uncovered) {
+				if (!u) ++count;
+			}
+			elementIds = new int[count];
+			count = 0;
+			for (int i = 0; i < size; ++i) {
+				if (!uncovered[i]) {
+					uncovered[i] = true;
+					elementIds[count++] = i;
+				}
+			}
+		}
+		return await(uncoverElements(recipientId, elementIds, null));
+	}
+
+
+	/**
+	 * Starts uncovering the specified permutation element to the specified
+	 * participant, without blocking.
+	 *
+	 * @param callback  notified when the element is uncovered (may be null)
+	 * @return future holding a one-element array with the value (for the
+	 *         recipient) or -1 (for all other participants)
+	 * @see #uncoverAsync(int, int[], UncoverCallback)
+	 */
+	public Future<int[]> uncoverAsync(int recipientId, int elementId, UncoverCallback callback) {
+		return uncoverAsync(recipientId, new int[] {elementId}, callback);
+	}
+
+
+	/**
+	 * Starts uncovering the specified permutation elements to the specified
+	 * participant, without blocking.
+	 * <p>
+	 * No thread is blocked while the operation is pending: the work is done by
+	 * the worker pool as soon as the required values arrive, and the returned
+	 * future completes as soon as k valid secret shares are received.
+	 *
+	 * @param callback  notified when the elements are uncovered (may be null)
+	 * @return future holding the values of the elements (for the recipient),
+	 *         or an array of -1 values (for all other participants); it fails
+	 *         with a {@link ProtocolException} if the elements can't be
+	 *         uncovered
+	 */
+	public Future<int[]> uncoverAsync(int recipientId, int[] elementIds, UncoverCallback callback) {
+		for (int elementId : elementIds) {
+			if (elementId < 0 || elementId >= size) {
+				throw new NoSuchElementException("Element "+elementId+" is not between 0 and size-1.");
+			}
 		}
 		synchronized (uncovered) {
-			if (uncovered[elementId]) {
-//				throw new IllegalStateException("Element "+elementId+" already uncovered.");
+			for (int elementId : elementIds) {
+				if (uncovered[elementId]) {
+//					throw new IllegalStateException("Element "+elementId+" already uncovered.");
+				}
+				uncovered[elementId] = true;
 			}
-			uncovered[elementId] = true;
 		}
-		return uncoverElement(recipientId, elementId);
+		return uncoverElements(recipientId, elementIds, callback);
 	}
 
 
 	/**
-	 * Internal implementation used by {@link #uncover(int)} and
-	 * {@link #uncover(int, int)}.
+	 * Internal implementation used by all the uncover methods.
 	 */
-	private int uncoverElement(final int recipientId, final int elementId) throws ProtocolException {
-		Log.log(Log.INFO, "#"+recipientId+" uncovering element "+elementId);
+	private Future<int[]> uncoverElements(int recipientId, int[] elementIds, UncoverCallback callback) {
+		if (Log.isEnabled(Log.INFO)) {
+			Log.log(Log.INFO, "#"+recipientId+" uncovering elements "+Arrays.toString(elementIds));
+		}
 
-		// block until permutation is ready
-		try {
-			get("permutation_ready");
-		} catch (DeadObjectException e) {
-			throw new ProtocolException("Error while generating permutation.");
+		final Uncover u = new Uncover(recipientId, elementIds, callback);
+		whenAvailable(PERMUTATION_READY, new Runnable() {
+			public void run() {
+				u.execute(new Runnable() {
+					public void run() {
+						u.start();
+					}
+				});
+			}
+		});
+		return u;
+	}
+
+
+	/**
+	 * Wait for an uncover operation to finish.
+	 */
+	private static int[] await(Future<int[]> f) throws ProtocolException {
+		while (true) {
+			try {
+				return f.get();
+			} catch (InterruptedException e) {
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof ProtocolException) {
+					throw (ProtocolException) e.getCause();
+				}
+				throw new ProtocolException(e.getCause());
+			}
 		}
+	}
 
-		// recipient: get shares and compute the result
-		if (recipientId == localId) {
-			final int[][] points = new int[k][2];
-			final int[] count = {1, 0};  // 0: valid points, 1: failures
 
-			points[0][0] = localId+1;
-			points[0][1] = Paillier.decrypt(get("elements["+elementId+"]["+localId+"]"), secretKey()).intValue();
+	/**
+	 * State of one uncover operation.
+	 * <p>
+	 * All the work is done in the worker pool, triggered by the arrival of the
+	 * required values (see {@link DataBackedObject#whenAvailable}).
+	 */
+	private class Uncover implements Future<int[]> {
+		private final int recipientId;
+		private final int[] elementIds;
+		private final UncoverCallback callback;
+
+		/**
+		 * Secret shares used for the interpolation, for each element.
+		 */
+		private final int[][][] points;
+
+		/**
+		 * Number of participants with valid shares, and with invalid shares.
+		 */
+		private int valid = 1;
+		private int failures = 0;
+
+		/**
+		 * Outcome of the operation, set once by {@link #finish}.
+		 */
+		private boolean done = false;
+		private boolean cancelled = false;
+		private int[] result;
+		private ProtocolException exception;
+
+		private Uncover(int recipientId, int[] elementIds, UncoverCallback callback) {
+			this.recipientId = recipientId;
+			this.elementIds = elementIds;
+			this.callback = callback;
+			points = new int[elementIds.length][k][2];
+		}
 
-			runWithEach(true, new ParticipantAction() {
-				public void run(RemoteParticipant p) {
-					boolean ok;
-					BigInteger x = null;
+		/**
+		 * Run the given action in the worker pool, failing the whole operation
+		 * if it throws an exception.
+		 */
+		private void execute(final Runnable action) {
+			Runnable r = new Runnable() {
+				public void run() {
 					try {
-						x = Paillier.decrypt(p.get("secret["+elementId+"][0]"), secretKey());
-						BigInteger y = Paillier.decryptBig(p.get("secret["+elementId+"][1]"), secretKey());
-						ok = Paillier.encrypt(x, y, publicKey(p.getId())).equals(get("elements["+elementId+"]["+p.getId()+"]"));
-						if (!ok) {
-							Log.log(Log.WARN, "#"+p.getId()+" failed to prove secret share correctness.");
-						}
+						action.run();
 					} catch (DeadObjectException e) {
-						ok = false;
+						setException(new ProtocolException("Error while generating permutation."));
+					} catch (RuntimeException e) {
+						setException(new ProtocolException(e));
 					}
-					synchronized (points) {
-						if (ok) {
-							points[count[0]][0] = p.getId()+1;
-							points[count[0]][1] = x.intValue();
-							++count[0];
-						} else {
-							++count[1];
+				}
+			};
+			try {
+				if (executor != null) {
+					executor.execute(r);
+				} else {
+					runInBackground(r);
+				}
+			} catch (RejectedExecutionException e) {
+				// the worker pool was shut down by kill()
+				setException(new ProtocolException("Error while generating permutation."));
+			}
+		}
+
+		/**
+		 * Run the given action for each element in the worker pool, and then
+		 * run the second action after all of them finish.
+		 */
+		private void forEachElement(final IndexAction action, final Runnable done) {
+			final AtomicInteger remaining = new AtomicInteger(elementIds.length);
+			for (int e = 0; e < elementIds.length; ++e) {
+				final int cur = e;
+				execute(new Runnable() {
+					public void run() {
+						try {
+							action.run(cur);
+						} finally {
+							if (remaining.decrementAndGet() == 0) {
+								execute(done);
+							}
 						}
-						points.notifyAll();
 					}
-				}
-			});
+				});
+			}
+		}
 
-			while (true) {
-				synchronized (points) {
-					if (count[0] >= k) {
-						return Polynomial.interpolate(mod, points, 0);
+		/**
+		 * Called when the permutation is ready.
+		 */
+		private void start() {
+			Cryperm.this.get(PERMUTATION_READY);
+
+			if (elementIds.length == 0) {
+				set(new int[0]);
+				return;
+			}
+
+			// recipient: get shares and compute the result
+			if (recipientId == localId) {
+				forEachElement(new IndexAction() {
+					public void run(int e) {
+						points[e][0][0] = localId+1;
+						points[e][0][1] = Paillier.decrypt(Cryperm.this.get(Keys.index(ELEMENTS, elementIds[e], localId)), secretKey()).intValue();
 					}
-					if (count[1] > n-k) {
-						throw new ProtocolException("Unable to get "+(k-1)+" secret shares from other participants.");
+				}, new Runnable() {
+					public void run() {
+						for (final RemoteParticipant p : participants) {
+							if (p == null) continue;
+							long[] keys = new long[2*elementIds.length];
+							for (int e = 0; e < elementIds.length; ++e) {
+								keys[2*e] = Keys.index(SECRET, elementIds[e], 0);
+								keys[2*e+1] = Keys.index(SECRET, elementIds[e], 1);
+							}
+							whenAvailable(p, keys, new Runnable() {
+								public void run() {
+									execute(new Runnable() {
+										public void run() {
+											verify(p);
+										}
+									});
+								}
+							});
+						}
 					}
+				});
+
+			// all other participants: send necessary data to the recipient
+			} else {
+				final long[] keys = new long[2*elementIds.length];
+				forEachElement(new IndexAction() {
+					public void run(int e) {
+						BigInteger c = Cryperm.this.get(Keys.index(ELEMENTS, elementIds[e], localId));
+						// decrypt
+						BigInteger x = Paillier.decrypt(c, secretKey());
+						BigInteger y = Paillier.decrypt2(c, secretKey());
+						// re-encrypt for recipient
+						keys[2*e] = Keys.index(SECRET, elementIds[e], 0);
+						keys[2*e+1] = Keys.index(SECRET, elementIds[e], 1);
+						Cryperm.this.set(keys[2*e], Paillier.encrypt(x, publicKey(recipientId)));
+						Cryperm.this.set(keys[2*e+1], Paillier.encryptBig(y, publicKey(recipientId)));
+					}
+				}, new Runnable() {
+					public void run() {
+						// send everything to recipient at once
+						participants[recipientId].send(keys);
+						int[] res = new int[elementIds.length];
+						Arrays.fill(res, -1);
+						set(res);
+					}
+				});
+			}
+		}
+
+		/**
+		 * Verify the secret shares received from the given participant.
+		 */
+		private void verify(final RemoteParticipant p) {
+			final int[] x = new int[elementIds.length];
+			final AtomicBoolean failed = new AtomicBoolean(false);
+			forEachElement(new IndexAction() {
+				public void run(int e) {
+					if (failed.get()) return;
 					try {
-						points.wait();
-					} catch (InterruptedException e) {
+						BigInteger xe = Paillier.decrypt(p.get(Keys.index(SECRET, elementIds[e], 0)), secretKey());
+						BigInteger ye = Paillier.decryptBig(p.get(Keys.index(SECRET, elementIds[e], 1)), secretKey());
+						if (Paillier.encrypt(xe, ye, publicKey(p.getId())).equals(Cryperm.this.get(Keys.index(ELEMENTS, elementIds[e], p.getId())))) {
+							x[e] = xe.intValue();
+						} else {
+							if (!failed.getAndSet(true)) {
+								Log.log(Log.WARN, "#"+p.getId()+" failed to prove secret share correctness.");
+							}
+						}
+					} catch (DeadObjectException ex) {
+						failed.set(true);
 					}
 				}
+			}, new Runnable() {
+				public void run() {
+					collect(p, failed.get() ? null : x);
+				}
+			});
+		}
+
+		/**
+		 * Record the verified shares of one participant (null if invalid), and
+		 * finish the operation if possible.
+		 */
+		synchronized private void collect(RemoteParticipant p, int[] x) {
+			if (isDone()) return;
+			if (x != null) {
+				for (int e = 0; e < elementIds.length; ++e) {
+					points[e][valid][0] = p.getId()+1;
+					points[e][valid][1] = x[e];
+				}
+				++valid;
+			} else {
+				++failures;
 			}
 
-		// all other participants: send necessary data to the recipient
-		} else {
-			// decrypt
-			BigInteger x = Paillier.decrypt(get("elements["+elementId+"]["+localId+"]"), secretKey());
-			BigInteger y = Paillier.decrypt2(get("elements["+elementId+"]["+localId+"]"), secretKey());
-			// re-encrypt for recipient
-			set("secret["+elementId+"][0]", Paillier.encrypt(x, publicKey(recipientId)));
-			set("secret["+elementId+"][1]", Paillier.encryptBig(y, publicKey(recipientId)));
-			// send to recipient
-			participants[recipientId].send("secret["+elementId+"]", 2);
+			if (valid >= k) {
+				int[] res = new int[elementIds.length];
+				for (int e = 0; e < elementIds.length; ++e) {
+					res[e] = Polynomial.interpolate(mod, points[e], 0);
+				}
+				set(res);
+			} else if (failures > n-k) {
+				setException(new ProtocolException("Unable to get "+(k-1)+" secret shares from other participants."));
+			}
+		}
+
+		private void set(int[] result) {
+			finish(result, null);
+		}
+
+		private void setException(ProtocolException exception) {
+			finish(null, exception);
+		}
+
+		/**
+		 * Complete the operation (unless it is already done), and notify the
+		 * callback.
+		 */
+		private void finish(int[] result, ProtocolException exception) {
+			synchronized (this) {
+				if (done) return;
+				this.result = result;
+				this.exception = exception;
+				done = true;
+				notifyAll();
+			}
+			if (callback != null) {
+				if (exception == null) {
+					callback.uncovered(elementIds, result);
+				} else {
+					callback.failed(elementIds, exception);
+				}
+			}
+		}
+
+		/**
+		 * Stop waiting for the result. The work already started is not
+		 * interrupted, and the callback is not notified.
+		 */
+		synchronized public boolean cancel(boolean mayInterruptIfRunning) {
+			if (done) return false;
+			done = true;
+			cancelled = true;
+			notifyAll();
+			return true;
+		}
+
+		synchronized public boolean isCancelled() {
+			return cancelled;
+		}
+
+		synchronized public boolean isDone() {
+			return done;
+		}
+
+		synchronized public int[] get() throws InterruptedException, ExecutionException {
+			while (!done) {
+				wait();
+			}
+			return report();
+		}
 
-			return -1;
+		synchronized public int[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			while (!done) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) throw new TimeoutException();
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+			return report();
+		}
+
+		private int[] report() throws ExecutionException {
+			if (cancelled) throw new CancellationException();
+			if (exception != null) throw new ExecutionException(exception);
+			return result;
+		}
+	}
+
+
+	/**
+	 * Run the given action once values are assigned to all the specified keys
+	 * of the given object (or the object dies).
+	 */
+	private static void whenAvailable(DataBackedObject o, long[] keys, final Runnable action) {
+		final AtomicInteger remaining = new AtomicInteger(keys.length);
+		Runnable r = new Runnable() {
+			public void run() {
+				if (remaining.decrementAndGet() == 0) {
+					action.run();
+				}
+			}
+		};
+		for (long key : keys) {
+			o.whenAvailable(key, r);
 		}
 	}
 
@@ -362,6 +903,66 @@ public class Cryperm extends Protocol {
 	////////////////////////////////////////////////////////////////////////////
 	// HELPER METHODS
 
+	/**
+	 * A loop body executed by {@link Cryperm#parallelFor}.
+	 */
+	private interface IndexAction {
+		public void run(int i);
+	}
+
+	/**
+	 * Run the given action for each index from 0 to count-1, using the worker
+	 * pool, and wait until all of them finish.
+	 * <p>
+	 * Any exception thrown by the action is re-thrown in the calling thread.
+	 * This must not be called from the worker threads themselves.
+	 */
+	private void parallelFor(int count, final IndexAction action) {
+		parallelFor(count, action, null);
+	}
+
+	/**
+	 * Like {@link #parallelFor(int, IndexAction)}, but additionally run the
+	 * second action in the calling thread for each index, in order, as soon as
+	 * the first action for this index (and all previous ones) finishes.
+	 */
+	private void parallelFor(int count, final IndexAction action, IndexAction done) {
+		if (workers == 1) {
+			for (int i = 0; i < count; ++i) {
+				action.run(i);
+				if (done != null) done.run(i);
+			}
+			return;
+		}
+
+		List<Future<?>> futures = new ArrayList<Future<?>>(count);
+		for (int i = 0; i < count; ++i) {
+			final int cur = i;
+			futures.add(executor.submit(new Runnable() {
+				public void run() {
+					action.run(cur);
+				}
+			}));
+		}
+
+		for (int i = 0; i < count; ++i) {
+			while (true) {
+				try {
+					futures.get(i).get();
+					if (done != null) done.run(i);
+					break;
+				} catch (InterruptedException e) {
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof RuntimeException) {
+						throw (RuntimeException) e.getCause();
+					}
+					throw new RuntimeException(e.getCause());
+				}
+			}
+		}
+	}
+
+
 	/**
 	 * Access the specified participant's public key.
 	 *
@@ -369,8 +970,25 @@ public class Cryperm extends Protocol {
 	 * @return all public parts of the participant's key
 	 */
 	private BigInteger[] publicKey(int id) {
-		if (id == localId) return get("key", Paillier.PUBLIC_FIELDS);
-		return get("public_keys["+id+"]", Paillier.PUBLIC_FIELDS);
+		if (id == localId) return get(KEY, Paillier.PUBLIC_FIELDS);
+		return get(Keys.index(PUBLIC_KEYS, id), Paillier.PUBLIC_FIELDS);
+	}
+
+	/**
+	 * Access the pool of randomizing values for the specified participant's
+	 * public key.
+	 * <p>
+	 * The pool is created on first access, and it starts pre-computing all
+	 * the values needed for shuffling and for the permutation proof.
+	 */
+	private RandomnessPool pool(int id) {
+		BigInteger[] key = publicKey(id);
+		synchronized (pools) {
+			if (pools[id] == null) {
+				pools[id] = new RandomnessPool(key, size*(proofIterations+1), 1);
+			}
+			return pools[id];
+		}
 	}
 
 	/**
@@ -379,7 +997,7 @@ public class Cryperm extends Protocol {
 	 * @return all parts of the local participant's key
 	 */
 	private BigInteger[] secretKey() {
-		return get("key", Paillier.FIELDS);
+		return get(KEY, Paillier.FIELDS);
 	}
 
 
@@ -393,7 +1011,7 @@ public class Cryperm extends Protocol {
 		BigInteger[][] elements = new BigInteger[size][n];
 		for (int i = 0; i < size; ++i) {
 			for (int j = 0; j < n; ++j) {
-				elements[i][j] = Paillier.encrypt(i, 1, publicKey(j));
+				elements[i][j] = Paillier.encryptPrecomputed(BigInteger.valueOf(i), BigInteger.ONE, publicKey(j));
 			}
 		}
 		return elements;
@@ -414,92 +1032,92 @@ public class Cryperm extends Protocol {
 		        .mod(publicKey(id)[Paillier.N2]);
 	}
 
-
-	/**
-	 * `Mask' a complete permutation matrix using the given permutation, array
-	 * of polynomials and a matrix of randomizing values.
-	 */
-	private BigInteger[][] permuteMatrix(BigInteger[][] matrix, Permutation perm, int[][] poly, BigInteger[][] y) {
-		BigInteger[][] res = perm.apply(matrix);
-
-		for (int i = 0; i < size; ++i) {
-			for (int j = 0; j < n; ++j) {
-				res[i][j] = mask(res[i][j], j, poly[i][j], y[i][j]);
-			}
-		}
-
-		return res;
-	}
-
-
 	/**
-	 * Compute one-way hash function of the given array of matrices (received or
-	 * generated as a part of the zero-knowledge permutation correctness proof.
+	 * `Mask' a secret share using a randomizing value taken from a
+	 * {@link RandomnessPool}.
 	 */
-	private boolean[] hashMatrices(BigInteger[][][] matrices) {
-		try {
-			MessageDigest md = MessageDigest.getInstance("SHA-256");
-			byte[] hash = md.digest(Arrays.deepToString(matrices).getBytes("US-ASCII"));
-			boolean[] res = new boolean[proofIterations];
-			for (int i = 0; i < proofIterations; ++i) {
-				res[i] = ((hash[i/8] >> (i%8)) & 1) == 0;
-			}
-			return res;
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}
+	private BigInteger mask(BigInteger c, int id, int maskingValue, BigInteger[] nonce) {
+		BigInteger[] key = publicKey(id);
+		return c.multiply(Paillier.encryptPrecomputed(BigInteger.valueOf(maskingValue), nonce[1], key))
+		        .mod(key[Paillier.N2]);
 	}
 
 
 	/**
 	 * Generate the non-interactive ZKP of permutation matrix correctness.
 	 */
-	private void generateProof(BigInteger[][] original, BigInteger[][] permuted, Permutation perm, int[][] poly, BigInteger[][] y) {
-		BigInteger[][][] matrices = new BigInteger[proofIterations][size][n];
-		Permutation[] perms = new Permutation[proofIterations];
-		int[][][] polys = new int[proofIterations][size][];
-		BigInteger[][][] ys = new BigInteger[proofIterations][size][n];
-
-		for (int it = 0; it < proofIterations; ++it) {
-			perms[it] = new Permutation(size);
-			for (int i = 0; i < size; ++i) {
-				polys[it][i] = new Polynomial(mod, k, 0).values(n);
-			}
-			for (int i = 0; i < size; ++i) {
-				for (int j = 0; j < n; ++j) {
-					ys[it][i][j] = Numbers.randomRelativelyPrime(publicKey(j)[0]);
+	private void generateProof(BigInteger[][] original, final BigInteger[][] permuted, Permutation perm, int[][] poly, BigInteger[][] y) {
+		final BigInteger[][][] matrices = new BigInteger[proofIterations][][];
+		final Permutation[] perms = new Permutation[proofIterations];
+		final int[][][] polys = new int[proofIterations][size][];
+		final BigInteger[][][] ys = new BigInteger[proofIterations][size][n];
+
+		final TranscriptHash hash = new TranscriptHash();
+
+		// the iterations are independent, each one is sent as soon as it is
+		// ready, and hashed in order
+		parallelFor(proofIterations, new IndexAction() {
+			public void run(int it) {
+				perms[it] = new Permutation(size);
+				for (int i = 0; i < size; ++i) {
+					polys[it][i] = new Polynomial(mod, k, 0).values(n);
 				}
-			}
 
-			matrices[it] = permuteMatrix(permuted, perms[it], polys[it], ys[it]);
+				BigInteger[][] matrix = perms[it].apply(permuted);
+				for (int i = 0; i < size; ++i) {
+					for (int j = 0; j < n; ++j) {
+						BigInteger[] nonce = pool(j).next();
+						ys[it][i][j] = nonce[0];
+						matrix[i][j] = mask(matrix[i][j], j, polys[it][i][j], nonce);
+					}
+				}
+				matrices[it] = matrix;
 
-			set("zkp_matrices["+it+"]", matrices[it]);
-			broadcast("zkp_matrices["+it+"]", size, n);
-		}
+				set(Keys.index(ZKP_MATRICES, it), matrix);
+				broadcast(Keys.index(ZKP_MATRICES, it), size, n);
+			}
+		}, new IndexAction() {
+			public void run(int it) {
+				hash.update(matrices[it]);
+			}
+		});
 
-		boolean[] challenges = hashMatrices(matrices);
+		boolean[] challenges = hash.challenges(proofIterations);
 
 		for (int it = 0; it < proofIterations; ++it) {
 			if (challenges[it]) {
-				set("zkp_perms["+it+"]", Numbers.toBigInteger(perms[it].get()));
+				set(Keys.index(ZKP_PERMS, it), Numbers.toBigInteger(perms[it].get()));
+				BigInteger[][] polysIt = new BigInteger[size][];
 				for (int i = 0; i < size; ++i) {
-					set("zkp_polys["+it+"]["+i+"]", Numbers.toBigInteger(polys[it][i]));
+					polysIt[i] = Numbers.toBigInteger(polys[it][i]);
 				}
-				set("zkp_ys["+it+"]", ys[it]);
+				set(Keys.index(ZKP_POLYS, it), polysIt);
+				set(Keys.index(ZKP_YS, it), ys[it]);
 			} else {
-				set("zkp_perms["+it+"]", perms[it].apply(Numbers.toBigInteger(perm.get())));
-				for (int i = 0; i < size; ++i) {
-					set("zkp_polys["+it+"]["+i+"]", Numbers.toBigInteger(Numbers.sum(poly[perms[it].get(i)], polys[it][i])));
-				}
+				set(Keys.index(ZKP_PERMS, it), perms[it].apply(Numbers.toBigInteger(perm.get())));
+				BigInteger[][] polysIt = new BigInteger[size][];
+				BigInteger[][] ysIt = new BigInteger[size][n];
 				for (int i = 0; i < size; ++i) {
+					polysIt[i] = Numbers.toBigInteger(Numbers.sum(poly[perms[it].get(i)], polys[it][i]));
 					for (int j = 0; j < n; ++j) {
-						set("zkp_ys["+it+"]["+i+"]["+j+"]", y[perms[it].get(i)][j].multiply(ys[it][i][j]).mod(publicKey(j)[0]));
+						ysIt[i][j] = y[perms[it].get(i)][j].multiply(ys[it][i][j]).mod(publicKey(j)[0]);
 					}
 				}
+				set(Keys.index(ZKP_POLYS, it), polysIt);
+				set(Keys.index(ZKP_YS, it), ysIt);
 			}
-			broadcast("zkp_perms["+it+"]", size);
-			broadcast("zkp_polys["+it+"]", size, n);
-			broadcast("zkp_ys["+it+"]", size, n);
+		}
+
+		// send all the answers in one batch
+		beginBatch();
+		try {
+			for (int it = 0; it < proofIterations; ++it) {
+				broadcast(Keys.index(ZKP_PERMS, it), size);
+				broadcast(Keys.index(ZKP_POLYS, it), size, n);
+				broadcast(Keys.index(ZKP_YS, it), size, n);
+			}
+		} finally {
+			endBatch();
 		}
 	}
 
@@ -507,61 +1125,131 @@ public class Cryperm extends Protocol {
 	/**
 	 * Verify a permutation correctness proof received from the specified
 	 * participant.
+	 * <p>
+	 * All the proof data is received first, then the iterations are checked
+	 * in parallel using the worker pool. The check of a matrix stops at the
+	 * first mismatched cell (or column, in batch mode), and all other
+	 * iterations stop as soon as one of them fails.
 	 *
 	 * @return true if the proof is correct
 	 */
 	private boolean verifyProof(RemoteParticipant p) {
-		BigInteger[][][] matrices = new BigInteger[proofIterations][][];
+		final BigInteger[][][] matrices = new BigInteger[proofIterations][][];
+		TranscriptHash hash = new TranscriptHash();
 		for (int it = 0; it < proofIterations; ++it) {
-			matrices[it] = p.get("zkp_matrices["+it+"]", size, n);
+			matrices[it] = p.get(Keys.index(ZKP_MATRICES, it), size, n);
+			hash.update(matrices[it]);
 		}
-		boolean[] challenges = hashMatrices(matrices);
+		final boolean[] challenges = hash.challenges(proofIterations);
 
-		BigInteger[][] compare1 = p.get("permuted", size, n);
-		BigInteger[][] compare0;
+		final BigInteger[][] compare1 = p.get(PERMUTED, size, n);
+		final BigInteger[][] compare0;
 		if (p.getId() == 0) {
 			compare0 = generateInitialElements();
 		} else {
 			if (p.getId()-1 == localId) {
-				compare0 = get("permuted", size, n);
+				compare0 = get(PERMUTED, size, n);
 			} else {
-				compare0 = participants[p.getId()-1].get("permuted", size, n);
+				compare0 = participants[p.getId()-1].get(PERMUTED, size, n);
 			}
 		}
 
+		final Permutation[] perms = new Permutation[proofIterations];
+		final int[][][] polys = new int[proofIterations][size][];
+		final BigInteger[][][] ys = new BigInteger[proofIterations][][];
+
 		for (int it = 0; it < proofIterations; ++it) {
-			Permutation perm;
 			try {
-				perm = new Permutation(Numbers.toInt(p.get("zkp_perms["+it+"]", size)));
+				perms[it] = new Permutation(Numbers.toInt(p.get(Keys.index(ZKP_PERMS, it), size)));
 			} catch (IllegalArgumentException e) {
 				return false;
 			}
 
-			int[][] poly = new int[size][];
 			for (int i = 0; i < size; ++i) {
-				poly[i] = Numbers.toInt(p.get("zkp_polys["+it+"]["+i+"]", n));
+				polys[it][i] = Numbers.toInt(p.get(Keys.index(ZKP_POLYS, it, i), n));
 				for (int j = 0; j < n; ++j) {
-					if (challenges[it] && poly[i][j] > mod-1) return false;
-					if (!challenges[it] && poly[i][j] > 2*mod-2) return false;
+					if (challenges[it] && polys[it][i][j] > mod-1) return false;
+					if (!challenges[it] && polys[it][i][j] > 2*mod-2) return false;
 				}
-				if (Polynomial.interpolate(mod, poly[i], 0) != 0) {
+				if (Polynomial.interpolate(mod, polys[it][i], 0) != 0) {
 					return false;
 				}
+			}
+
+			ys[it] = p.get(Keys.index(ZKP_YS, it), size, n);
+		}
 
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		parallelFor(proofIterations, new IndexAction() {
+			public void run(int it) {
+				BigInteger[][] compare = challenges[it] ? compare1 : compare0;
+				if (batchSecurity > 0) {
+					for (int j = 0; j < n; ++j) {
+						if (failed.get()) return;
+						if (!verifyColumn(matrices[it], compare, perms[it], polys[it], ys[it], j)) {
+							failed.set(true);
+							return;
+						}
+					}
+					return;
+				}
+				for (int i = 0; i < size; ++i) {
+					if (failed.get()) return;
+					for (int j = 0; j < n; ++j) {
+						BigInteger expected = mask(compare[perms[it].get(i)][j], j, polys[it][i][j], ys[it][i][j]);
+						if (!expected.equals(matrices[it][i][j])) {
+							failed.set(true);
+							return;
+						}
+					}
+				}
 			}
+		});
 
-			BigInteger[][] y = p.get("zkp_ys["+it+"]", size, n);
+		return !failed.get();
+	}
 
-			BigInteger[][] permuted = permuteMatrix(
-					challenges[it] ? compare1 : compare0,
-					perm, poly, y);
 
-			if (!Arrays.deepEquals(matrices[it], permuted)) {
-				return false;
-			}
+
+	/**
+	 * Check one column of a proof matrix in batch mode.
+	 * <p>
+	 * Instead of re-computing every cell, the cells of the column are combined
+	 * using random batchSecurity-bit exponents e<sub>i</sub>, and a single
+	 * equation is checked:
+	 * &prod;M<sub>i</sub><sup>e<sub>i</sub></sup> =
+	 * &prod;C<sub>perm(i)</sub><sup>e<sub>i</sub></sup>
+	 * E(&sum;e<sub>i</sub>poly<sub>i</sub>, &prod;y<sub>i</sub><sup>e<sub>i</sub></sup>).
+	 * All the cells in a column are encrypted with the same key, so this costs
+	 * three multi-exponentiations with short exponents and one full
+	 * exponentiation, instead of one full exponentiation per cell.
+	 * <p>
+	 * If any plaintext in the column differs from the expected one, the check
+	 * fails except with probability about 2<sup>-batchSecurity</sup>. Cells
+	 * that differ only by a factor of small order (an encryption of zero,
+	 * which does not change the plaintext) may go undetected.
+	 */
+	private boolean verifyColumn(BigInteger[][] matrix, BigInteger[][] compare, Permutation perm, int[][] poly, BigInteger[][] y, int j) {
+		BigInteger[] key = publicKey(j);
+
+		BigInteger[] e = new BigInteger[size];
+		BigInteger[] m = new BigInteger[size];
+		BigInteger[] c = new BigInteger[size];
+		BigInteger[] r = new BigInteger[size];
+		BigInteger sum = BigInteger.ZERO;
+		for (int i = 0; i < size; ++i) {
+			e[i] = new BigInteger(batchSecurity, batchRandom).add(BigInteger.ONE);
+			m[i] = matrix[i][j];
+			c[i] = compare[perm.get(i)][j];
+			r[i] = y[i][j];
+			sum = sum.add(e[i].multiply(BigInteger.valueOf(poly[i][j])));
 		}
 
-		return true;
+		BigInteger left = Numbers.multiPow(m, e, key[Paillier.N2]);
+		BigInteger right = Numbers.multiPow(c, e, key[Paillier.N2]).multiply(
+				Paillier.encrypt(sum, Numbers.multiPow(r, e, key[Paillier.N]), key))
+				.mod(key[Paillier.N2]);
+		return left.equals(right);
 	}
 
-}
\ No newline at end of file
+}
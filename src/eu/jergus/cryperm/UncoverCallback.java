@@ -0,0 +1,25 @@
+package eu.jergus.cryperm;
+
+import eu.jergus.crypto.exception.ProtocolException;
+
+/**
+ * Notified when an asynchronous uncover started by
+ * {@link Cryperm#uncoverAsync} finishes.
+ */
+public interface UncoverCallback {
+
+	/**
+	 * Called when the elements are uncovered.
+	 *
+	 * @param elementIds  IDs of the uncovered elements
+	 * @param values      values of the elements (for the recipient), or -1
+	 *                    values (for all other participants)
+	 */
+	public void uncovered(int[] elementIds, int[] values);
+
+	/**
+	 * Called when the elements could not be uncovered.
+	 */
+	public void failed(int[] elementIds, ProtocolException e);
+
+}
@@ -49,6 +49,43 @@ public class Paillier {
 	 */
 	public static final int N_INV = 7;
 
+	/**
+	 * Index of p<sup>2</sup> in the key array.
+	 */
+	public static final int P2 = 8;
+
+	/**
+	 * Index of q<sup>2</sup> in the key array.
+	 */
+	public static final int Q2 = 9;
+
+	/**
+	 * Index of L<sub>p</sub>((n+1)<sup>p-1</sup> mod p<sup>2</sup>)<sup>-1</sup>
+	 * mod p in the key array.
+	 */
+	public static final int HP = 10;
+
+	/**
+	 * Index of L<sub>q</sub>((n+1)<sup>q-1</sup> mod q<sup>2</sup>)<sup>-1</sup>
+	 * mod q in the key array.
+	 */
+	public static final int HQ = 11;
+
+	/**
+	 * Index of q<sup>-1</sup> mod p in the key array.
+	 */
+	public static final int Q_INV = 12;
+
+	/**
+	 * Index of n<sup>-1</sup> mod (p-1) in the key array.
+	 */
+	public static final int N_INV_P = 13;
+
+	/**
+	 * Index of n<sup>-1</sup> mod (q-1) in the key array.
+	 */
+	public static final int N_INV_Q = 14;
+
 
 	/**
 	 * Public key array length.
@@ -58,7 +95,7 @@ public class Paillier {
 	/**
 	 * Public+private key array length.
 	 */
-	public static final int FIELDS = 8;
+	public static final int FIELDS = 15;
 
 
 	/**
@@ -86,10 +123,28 @@ public class Paillier {
 
 		key[N_INV] = key[N].modInverse(phi);
 
+		// values used by the CRT decryption
+		key[P2] = key[P].pow(2);
+		key[Q2] = key[Q].pow(2);
+		key[HP] = hConstant(key[N_PLUS_1], key[P], pMinus1, key[P2]);
+		key[HQ] = hConstant(key[N_PLUS_1], key[Q], qMinus1, key[Q2]);
+		key[Q_INV] = key[Q].modInverse(key[P]);
+		key[N_INV_P] = key[N_INV].mod(pMinus1);
+		key[N_INV_Q] = key[N_INV].mod(qMinus1);
+
 		return key;
 	}
 
 
+	/**
+	 * Compute L<sub>p</sub>(g<sup>p-1</sup> mod p<sup>2</sup>)<sup>-1</sup> mod p,
+	 * where L<sub>p</sub>(x) = (x-1)/p.
+	 */
+	private static BigInteger hConstant(BigInteger g, BigInteger p, BigInteger pMinus1, BigInteger p2) {
+		return g.modPow(pMinus1, p2).subtract(BigInteger.ONE).divide(p).modInverse(p);
+	}
+
+
 	/**
 	 * Pre-computes additional values from the given public key.
 	 */
@@ -143,29 +198,68 @@ public class Paillier {
 	 * randomizing value.
 	 */
 	public static BigInteger encrypt(BigInteger x, BigInteger y, BigInteger[] key) {
-		BigInteger a = key[N_PLUS_1].modPow(x, key[N2]);
-		BigInteger b = y.modPow(key[N], key[N2]);
-		return a.multiply(b).mod(key[N2]);
+		return encryptPrecomputed(x, y.modPow(key[N], key[N2]), key);
+	}
+
+
+	/**
+	 * Encrypt the specified value using the given public key and the n-th
+	 * power (mod n<sup>2</sup>) of the randomizing value, as returned by
+	 * {@link RandomnessPool#next}.
+	 * <p>
+	 * No exponentiation is needed for the plaintext part, since
+	 * (n+1)<sup>x</sup> = 1 + xn (mod n<sup>2</sup>).
+	 */
+	public static BigInteger encryptPrecomputed(BigInteger x, BigInteger yPowN, BigInteger[] key) {
+		BigInteger a = x.mod(key[N]).multiply(key[N]).add(BigInteger.ONE);
+		return a.multiply(yPowN).mod(key[N2]);
 	}
 
 
 	/**
 	 * Decrypt the given encrypted value. A key array that includes a private
 	 * key must be given.
+	 * <p>
+	 * The computation is split into halves modulo p<sup>2</sup> and
+	 * q<sup>2</sup>, which are then combined using the Chinese remainder
+	 * theorem.
 	 */
 	public static BigInteger decrypt(BigInteger c, BigInteger[] key) {
-		BigInteger cPow = c.modPow(key[LAM], key[N2]);
-		BigInteger log = cPow.subtract(BigInteger.ONE).divide(key[N]);
-		return log.multiply(key[LAM_INV]).mod(key[N]);
+		BigInteger mp = decryptHalf(c, key[P], key[P2], key[HP]);
+		BigInteger mq = decryptHalf(c, key[Q], key[Q2], key[HQ]);
+		return crt(mp, mq, key);
 	}
 
 
 	/**
 	 * Decrypt the randomizing value used when encrypting the given ciphertext.
 	 * A key array that includes a private key must be given.
+	 * <p>
+	 * Like {@link #decrypt}, this works modulo p and q separately.
 	 */
 	public static BigInteger decrypt2(BigInteger c, BigInteger[] key) {
-		return c.modPow(key[N_INV], key[N]);
+		BigInteger yp = c.mod(key[P]).modPow(key[N_INV_P], key[P]);
+		BigInteger yq = c.mod(key[Q]).modPow(key[N_INV_Q], key[Q]);
+		return crt(yp, yq, key);
+	}
+
+
+	/**
+	 * Decrypt the given ciphertext modulo one of the prime factors:
+	 * L<sub>p</sub>(c<sup>p-1</sup> mod p<sup>2</sup>) h<sub>p</sub> mod p.
+	 */
+	private static BigInteger decryptHalf(BigInteger c, BigInteger p, BigInteger p2, BigInteger h) {
+		BigInteger cPow = c.mod(p2).modPow(p.subtract(BigInteger.ONE), p2);
+		return cPow.subtract(BigInteger.ONE).divide(p).multiply(h).mod(p);
+	}
+
+
+	/**
+	 * Combine values modulo p and q into the value modulo n.
+	 */
+	private static BigInteger crt(BigInteger xp, BigInteger xq, BigInteger[] key) {
+		BigInteger h = xp.subtract(xq).multiply(key[Q_INV]).mod(key[P]);
+		return xq.add(h.multiply(key[Q]));
 	}
 
 
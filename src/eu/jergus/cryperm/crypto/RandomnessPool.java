@@ -0,0 +1,89 @@
+package eu.jergus.cryperm.crypto;
+
+import java.math.BigInteger;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eu.jergus.cryperm.math.Numbers;
+
+/**
+ * A pool of randomizing values for one public key, pre-computed in background
+ * threads.
+ * <p>
+ * The pool is created with the number of values that are going to be needed.
+ * Background threads produce the values until this number is reached, which
+ * can happen while the protocol is waiting for data from the network. If the
+ * pool is empty when a value is requested, the value is computed directly by
+ * the calling thread.
+ * <p>
+ * Every randomizing value y is chosen uniformly from the numbers relatively
+ * prime to n, and its n-th power is computed with a full exponentiation.
+ * (Deriving the values from one fixed base would keep them all in its
+ * subgroup, and e.g. their Jacobi symbols would leak through the masking.)
+ */
+public class RandomnessPool {
+
+	private final BigInteger n;
+	private final BigInteger n2;
+
+	private final BlockingQueue<BigInteger[]> queue = new LinkedBlockingQueue<BigInteger[]>();
+
+	/**
+	 * Number of values that still need to be produced.
+	 */
+	private final AtomicInteger remaining;
+
+
+	/**
+	 * Create a pool and start the background threads.
+	 *
+	 * @param key      public key array, as returned by {@link Paillier#keyToArray}
+	 * @param count    expected number of values that will be requested
+	 * @param threads  number of background threads
+	 */
+	public RandomnessPool(BigInteger[] key, int count, int threads) {
+		n = key[Paillier.N];
+		n2 = key[Paillier.N2];
+		remaining = new AtomicInteger(count);
+
+		for (int i = 0; i < threads; ++i) {
+			Thread t = new Thread() {
+				public void run() {
+					while (remaining.getAndDecrement() > 0) {
+						queue.add(generate());
+					}
+				}
+			};
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			t.start();
+		}
+	}
+
+
+	/**
+	 * Return a randomizing value.
+	 *
+	 * @return array containing the randomizing value y and
+	 *         y<sup>n</sup> mod n<sup>2</sup>
+	 */
+	public BigInteger[] next() {
+		BigInteger[] res = queue.poll();
+		if (res == null) {
+			remaining.decrementAndGet();
+			res = generate();
+		}
+		return res;
+	}
+
+
+	/**
+	 * Generate a new randomizing value and its n-th power.
+	 */
+	private BigInteger[] generate() {
+		BigInteger y = Numbers.randomRelativelyPrime(n);
+		return new BigInteger[] {y, y.modPow(n, n2)};
+	}
+
+}
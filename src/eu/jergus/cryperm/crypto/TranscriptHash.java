@@ -0,0 +1,84 @@
+package eu.jergus.cryperm.crypto;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * One-way hash of a sequence of values, used to derive the challenges of a
+ * non-interactive (Fiat-Shamir) proof.
+ * <p>
+ * Values are fed into the digest as they are produced or received: each one
+ * as its length (4 bytes) followed by its two's-complement representation.
+ * Matrices are additionally prefixed by their dimensions, so the encoding is
+ * unambiguous.
+ */
+public class TranscriptHash {
+
+	private final MessageDigest md;
+
+	private final byte[] intBuffer = new byte[4];
+
+
+	/**
+	 * Start a new, empty transcript.
+	 */
+	public TranscriptHash() {
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+
+	/**
+	 * Append a value to the transcript.
+	 */
+	public void update(BigInteger value) {
+		byte[] b = value.toByteArray();
+		update(b.length);
+		md.update(b);
+	}
+
+
+	/**
+	 * Append a matrix of values to the transcript.
+	 */
+	public void update(BigInteger[][] matrix) {
+		update(matrix.length);
+		for (BigInteger[] row : matrix) {
+			update(row.length);
+			for (BigInteger value : row) {
+				update(value);
+			}
+		}
+	}
+
+
+	private void update(int x) {
+		intBuffer[0] = (byte) (x >> 24);
+		intBuffer[1] = (byte) (x >> 16);
+		intBuffer[2] = (byte) (x >> 8);
+		intBuffer[3] = (byte) x;
+		md.update(intBuffer);
+	}
+
+
+	/**
+	 * Finish the transcript and derive the specified number of one-bit
+	 * challenges (at most 256) from its hash.
+	 */
+	public boolean[] challenges(int count) {
+		byte[] hash = md.digest();
+		if (count > hash.length*8) {
+			throw new IllegalArgumentException("At most "+(hash.length*8)+" challenges can be derived.");
+		}
+		boolean[] res = new boolean[count];
+		for (int i = 0; i < count; ++i) {
+			res[i] = ((hash[i/8] >> (i%8)) & 1) == 0;
+		}
+		return res;
+	}
+
+}
@@ -50,6 +50,33 @@ public class Numbers {
 	}
 
 
+	/**
+	 * Compute the product of bases[i]<sup>exponents[i]</sup> mod m.
+	 * <p>
+	 * All the powers are computed simultaneously, so the squarings are shared
+	 * between them. This is efficient for many bases and short exponents.
+	 */
+	public static BigInteger multiPow(BigInteger[] bases, BigInteger[] exponents, BigInteger m) {
+		if (bases.length != exponents.length) {
+			throw new IllegalArgumentException("Number of bases different from number of exponents.");
+		}
+		int bits = 0;
+		for (BigInteger e : exponents) {
+			bits = Math.max(bits, e.bitLength());
+		}
+		BigInteger res = BigInteger.ONE;
+		for (int b = bits-1; b >= 0; --b) {
+			res = res.multiply(res).mod(m);
+			for (int i = 0; i < bases.length; ++i) {
+				if (exponents[i].testBit(b)) {
+					res = res.multiply(bases[i]).mod(m);
+				}
+			}
+		}
+		return res;
+	}
+
+
 	/**
 	 * Convert int[] to BigInteger[].
 	 */
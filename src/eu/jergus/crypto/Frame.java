@@ -0,0 +1,299 @@
+package eu.jergus.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Encoding of the values sent between participants.
+ * <p>
+ * Every value is sent as one frame:
+ * <pre>
+ * key      8 bytes  (see {@link eu.jergus.crypto.util.Keys})
+ * type     1 byte   ({@link #VALUE}, {@link #ARRAY} or {@link #MATRIX})
+ * length   4 bytes  (of the payload)
+ * payload
+ * </pre>
+ * The payload of a single value is its two's-complement representation. An
+ * array is sent as the number of elements followed by the elements, each
+ * prefixed by its length; a 2D array as the number of rows followed by the
+ * rows, each encoded as an array.
+ * <p>
+ * Package-only visibility (frames are only used by {@link RemoteParticipant}
+ * and {@link Protocol}).
+ */
+class Frame {
+
+	static final int VALUE = 0;
+	static final int ARRAY = 1;
+	static final int MATRIX = 2;
+
+	static final int HEADER_LENGTH = 13;
+
+	/**
+	 * Maximum payload length. The length is received from the other
+	 * participant, so it must be bounded before any buffer is allocated.
+	 */
+	static final int MAX_FRAME_LENGTH = 1 << 26;
+
+
+	/**
+	 * Encode a single value into a complete frame.
+	 */
+	static byte[] encode(long key, BigInteger value) {
+		byte[] b = value.toByteArray();
+		byte[] res = header(key, VALUE, b.length);
+		System.arraycopy(b, 0, res, HEADER_LENGTH, b.length);
+		return res;
+	}
+
+	/**
+	 * Encode an array of values into a complete frame.
+	 */
+	static byte[] encode(long key, BigInteger[] array) {
+		byte[][] b = toByteArrays(array);
+		byte[] res = header(key, ARRAY, length(b));
+		put(res, HEADER_LENGTH, b);
+		return res;
+	}
+
+	/**
+	 * Encode a 2D array of values into a complete frame.
+	 */
+	static byte[] encode(long key, BigInteger[][] array) {
+		byte[][][] b = new byte[array.length][][];
+		int length = 4;
+		for (int i = 0; i < array.length; ++i) {
+			b[i] = toByteArrays(array[i]);
+			length += length(b[i]);
+		}
+		byte[] res = header(key, MATRIX, length);
+		int pos = putInt(res, HEADER_LENGTH, array.length);
+		for (int i = 0; i < array.length; ++i) {
+			pos = put(res, pos, b[i]);
+		}
+		return res;
+	}
+
+
+	/**
+	 * Decode the payload of a frame.
+	 *
+	 * @param b    buffer containing the payload
+	 * @param off  start of the payload in the buffer
+	 * @param len  length of the payload
+	 * @return a BigInteger, BigInteger[] or BigInteger[][], according to type
+	 * @throws IOException  if the payload is malformed
+	 */
+	static Object decode(int type, byte[] b, int off, int len) throws IOException {
+		int end = off + len;
+		int[] pos = {off};
+		Object res;
+
+		switch (type) {
+		case VALUE:
+			if (len == 0) throw new IOException("Malformed frame.");
+			return new BigInteger(Arrays.copyOfRange(b, off, end));
+		case ARRAY:
+			res = getArray(b, pos, end);
+			break;
+		case MATRIX:
+			BigInteger[][] matrix = new BigInteger[getLength(b, pos, end)][];
+			for (int i = 0; i < matrix.length; ++i) {
+				matrix[i] = getArray(b, pos, end);
+			}
+			res = matrix;
+			break;
+		default:
+			throw new IOException("Unknown frame type "+type+".");
+		}
+
+		if (pos[0] != end) throw new IOException("Malformed frame.");
+		return res;
+	}
+
+
+	private static byte[][] toByteArrays(BigInteger[] array) {
+		byte[][] res = new byte[array.length][];
+		for (int i = 0; i < array.length; ++i) {
+			res[i] = array[i].toByteArray();
+		}
+		return res;
+	}
+
+	/**
+	 * Return the encoded length of an array.
+	 */
+	private static int length(byte[][] b) {
+		int res = 4;
+		for (byte[] value : b) {
+			res += 4 + value.length;
+		}
+		return res;
+	}
+
+	private static byte[] header(long key, int type, int length) {
+		if (length < 0 || length > MAX_FRAME_LENGTH) {
+			throw new IllegalArgumentException("Value of "+length+" bytes is too large to send.");
+		}
+		byte[] res = new byte[HEADER_LENGTH + length];
+		for (int i = 0; i < 8; ++i) {
+			res[i] = (byte) (key >> (56 - 8*i));
+		}
+		res[8] = (byte) type;
+		putInt(res, 9, length);
+		return res;
+	}
+
+	private static int put(byte[] dest, int pos, byte[][] b) {
+		pos = putInt(dest, pos, b.length);
+		for (byte[] value : b) {
+			pos = putInt(dest, pos, value.length);
+			System.arraycopy(value, 0, dest, pos, value.length);
+			pos += value.length;
+		}
+		return pos;
+	}
+
+	private static int putInt(byte[] dest, int pos, int x) {
+		dest[pos] = (byte) (x >> 24);
+		dest[pos+1] = (byte) (x >> 16);
+		dest[pos+2] = (byte) (x >> 8);
+		dest[pos+3] = (byte) x;
+		return pos + 4;
+	}
+
+
+	private static BigInteger[] getArray(byte[] b, int[] pos, int end) throws IOException {
+		BigInteger[] res = new BigInteger[getLength(b, pos, end)];
+		for (int i = 0; i < res.length; ++i) {
+			int length = getLength(b, pos, end);
+			if (length == 0) throw new IOException("Malformed frame.");
+			res[i] = new BigInteger(Arrays.copyOfRange(b, pos[0], pos[0] + length));
+			pos[0] += length;
+		}
+		return res;
+	}
+
+	/**
+	 * Read a length, checking that this many bytes remain before end.
+	 */
+	private static int getLength(byte[] b, int[] pos, int end) throws IOException {
+		if (pos[0] + 4 > end) throw new IOException("Malformed frame.");
+		int res = getInt(b, pos[0]);
+		pos[0] += 4;
+		if (res < 0 || res > end - pos[0]) throw new IOException("Malformed frame.");
+		return res;
+	}
+
+	private static int getInt(byte[] b, int pos) {
+		return ((b[pos] & 0xFF) << 24) | ((b[pos+1] & 0xFF) << 16)
+		     | ((b[pos+2] & 0xFF) << 8) | (b[pos+3] & 0xFF);
+	}
+
+
+
+	/**
+	 * Reads frames from an input stream into a reusable buffer, decoding all
+	 * frames received by one read call at once.
+	 */
+	static class Reader {
+		private final InputStream in;
+
+		private byte[] buf = new byte[65536];
+
+		/**
+		 * Range of the buffer holding received data that was not decoded yet.
+		 */
+		private int start = 0;
+		private int end = 0;
+
+		/**
+		 * Keys and values of the last decoded frames.
+		 */
+		long[] keys = new long[16];
+		Object[] values = new Object[16];
+
+
+		Reader(InputStream in) {
+			this.in = in;
+		}
+
+
+		/**
+		 * Block until at least one complete frame is received, then decode
+		 * all complete frames in the buffer into {@link #keys} and
+		 * {@link #values}.
+		 *
+		 * @return number of decoded frames
+		 * @throws IOException  if the stream ends or a frame is malformed
+		 */
+		int read() throws IOException {
+			while (true) {
+				int count = decodeBuffered();
+				if (count > 0) {
+					return count;
+				}
+
+				// make room for the rest of the next frame
+				int needed = HEADER_LENGTH;
+				if (end - start >= HEADER_LENGTH) {
+					needed += payloadLength();
+				}
+				if (start + needed > buf.length) {
+					byte[] dest = needed > buf.length ? new byte[needed] : buf;
+					System.arraycopy(buf, start, dest, 0, end - start);
+					buf = dest;
+					end -= start;
+					start = 0;
+				}
+
+				int read = in.read(buf, end, buf.length - end);
+				if (read == -1) throw new IOException("Unexpected end of stream.");
+				end += read;
+			}
+		}
+
+
+		/**
+		 * Return the payload length of the frame at the start of the buffer.
+		 *
+		 * @throws IOException  if it is negative or too large
+		 */
+		private int payloadLength() throws IOException {
+			int length = getInt(buf, start + 9);
+			if (length < 0 || length > MAX_FRAME_LENGTH) {
+				throw new IOException("Malformed frame.");
+			}
+			return length;
+		}
+
+
+		private int decodeBuffered() throws IOException {
+			int count = 0;
+			while (end - start >= HEADER_LENGTH) {
+				int length = payloadLength();
+				if (end - start - HEADER_LENGTH < length) break;
+
+				if (count == keys.length) {
+					keys = Arrays.copyOf(keys, 2*count);
+					values = Arrays.copyOf(values, 2*count);
+				}
+				long key = 0;
+				for (int i = 0; i < 8; ++i) {
+					key = (key << 8) | (buf[start+i] & 0xFF);
+				}
+				keys[count] = key;
+				values[count] = decode(buf[start+8] & 0xFF, buf, start + HEADER_LENGTH, length);
+				++count;
+				start += HEADER_LENGTH + length;
+			}
+			if (start == end) {
+				start = end = 0;
+			}
+			return count;
+		}
+	}
+
+}
@@ -3,8 +3,14 @@ package eu.jergus.crypto;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import eu.jergus.crypto.util.DataBackedObject;
+import eu.jergus.crypto.util.Keys;
 import eu.jergus.crypto.util.Log;
 
 /**
@@ -30,6 +36,34 @@ public abstract class Protocol extends DataBackedObject implements Runnable {
 	protected final RemoteParticipant[] participants;
 
 
+	/**
+	 * Default executors for {@link #runWithEach}, shared by all protocols.
+	 * <p>
+	 * Participant actions usually block while waiting for data, so the pools
+	 * are not bounded. Idle threads are kept for a short time to be reused by
+	 * the following calls.
+	 */
+	private static final Executor DEFAULT_EXECUTOR = cachedPool(false);
+	private static final Executor DEFAULT_DAEMON_EXECUTOR = cachedPool(true);
+
+	private static Executor cachedPool(final boolean daemon) {
+		return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 2, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r);
+				t.setDaemon(daemon);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Executor running the participant actions, or null to use the default
+	 * ones.
+	 */
+	private final Executor executor;
+
+
 	/**
 	 * Initializes the instance variables and creates the {@link #participants}
 	 * array.
@@ -38,7 +72,42 @@ public abstract class Protocol extends DataBackedObject implements Runnable {
 	 * @param outputStreams  streams for sending data to the participants
 	 */
 	protected Protocol(int localId, InputStream[] inputStreams, OutputStream[] outputStreams) {
+		this(localId, inputStreams, outputStreams, true);
+	}
+
+
+	/**
+	 * Initializes the instance variables and creates the {@link #participants}
+	 * array, optionally without launching the protocol.
+	 * <p>
+	 * Subclasses that need their own fields initialized before {@link #run} is
+	 * called should pass false and call {@link #start} at the end of their
+	 * constructor.
+	 *
+	 * @param localId        ID of the local participant
+	 * @param inputStreams   streams for receiving data from the participants
+	 * @param outputStreams  streams for sending data to the participants
+	 * @param start          true to launch the protocol immediately
+	 */
+	protected Protocol(int localId, InputStream[] inputStreams, OutputStream[] outputStreams, boolean start) {
+		this(localId, inputStreams, outputStreams, null, start);
+	}
+
+
+	/**
+	 * Initializes the instance variables and creates the {@link #participants}
+	 * array, using the given executor for {@link #runWithEach}.
+	 *
+	 * @param localId        ID of the local participant
+	 * @param inputStreams   streams for receiving data from the participants
+	 * @param outputStreams  streams for sending data to the participants
+	 * @param executor       executor running the participant actions, or null
+	 *                       for the default one (see {@link #runWithEach})
+	 * @param start          true to launch the protocol immediately
+	 */
+	protected Protocol(int localId, InputStream[] inputStreams, OutputStream[] outputStreams, Executor executor, boolean start) {
 		this.localId = localId;
+		this.executor = executor;
 		n = inputStreams.length;
 		participants = new RemoteParticipant[n];
 
@@ -56,6 +125,16 @@ public abstract class Protocol extends DataBackedObject implements Runnable {
 			}
 		}
 
+		if (start) {
+			start();
+		}
+	}
+
+
+	/**
+	 * Launches {@link #run} in a separate thread.
+	 */
+	protected void start() {
 		Thread t = new Thread(this);
 		t.setUncaughtExceptionHandler(exceptionHandler);
 		t.start();
@@ -64,21 +143,35 @@ public abstract class Protocol extends DataBackedObject implements Runnable {
 
 	/**
 	 * Performs the given action with all remote participants, in parallel.
+	 * <p>
+	 * The actions are run by the executor passed to the constructor. Since
+	 * they may block while waiting for data, it must be able to run all the
+	 * actions started during the protocol at the same time (if the executor
+	 * has a bounded number of threads, the protocol can deadlock). By default,
+	 * shared pools of reusable threads are used.
+	 * <p>
+	 * Exceptions thrown by the actions are passed to {@link #exceptionHandler}.
 	 *
-	 * @param daemon  true if the threads should be started as daemon threads
-	 *                (ie. not blocking the exit of the application)
+	 * @param daemon  true if the actions should run in daemon threads (ie. not
+	 *                blocking the exit of the application); only applies to
+	 *                the default executor
 	 */
 	protected void runWithEach(boolean daemon, final ParticipantAction action) {
+		Executor e = executor;
+		if (e == null) {
+			e = daemon ? DEFAULT_DAEMON_EXECUTOR : DEFAULT_EXECUTOR;
+		}
 		for (final RemoteParticipant p : participants) {
 			if (p != null) {
-				Thread t = new Thread() {
+				e.execute(new Runnable() {
 					public void run() {
-						action.run(p);
+						try {
+							action.run(p);
+						} catch (Throwable t) {
+							exceptionHandler.uncaughtException(Thread.currentThread(), t);
+						}
 					};
-				};
-				t.setDaemon(daemon);
-				t.setUncaughtExceptionHandler(exceptionHandler);
-				t.start();
+				});
 			}
 		}
 	}
@@ -93,7 +186,43 @@ public abstract class Protocol extends DataBackedObject implements Runnable {
 
 
 	/**
-	 * Handles uncaught exceptions from all threads launched by this class.
+	 * Runs the given action in the background, using the same executor as
+	 * {@link #runWithEach} (a daemon thread of the default one).
+	 * <p>
+	 * Exceptions thrown by the action are passed to {@link #exceptionHandler}.
+	 */
+	protected void runInBackground(Runnable action) {
+		runInBackground(true, action);
+	}
+
+
+	/**
+	 * Runs the given action in the background.
+	 *
+	 * @param daemon  true if the action should run in a daemon thread; only
+	 *                applies to the default executor
+	 * @see #runInBackground(Runnable)
+	 */
+	protected void runInBackground(boolean daemon, final Runnable action) {
+		Executor e = executor;
+		if (e == null) {
+			e = daemon ? DEFAULT_DAEMON_EXECUTOR : DEFAULT_EXECUTOR;
+		}
+		e.execute(new Runnable() {
+			public void run() {
+				try {
+					action.run();
+				} catch (Throwable t) {
+					exceptionHandler.uncaughtException(Thread.currentThread(), t);
+				}
+			}
+		});
+	}
+
+
+	/**
+	 * Handles uncaught exceptions from all threads launched by this class, and
+	 * from all actions passed to {@link #runWithEach}.
 	 * <p>
 	 * By default, this kills the Protocol object if any such exception is
 	 * thrown.
@@ -108,47 +237,143 @@ public abstract class Protocol extends DataBackedObject implements Runnable {
 	/**
 	 * Adds logging capability to {@link util.DataBackedObject#set}.
 	 */
-	protected void set(String key, BigInteger value) {
+	protected void set(long key, BigInteger value) {
 		super.set(key, value);
-		Log.log(Log.CALC, key+" = "+Log.bigInteger(value));
+		if (Log.isEnabled(Log.CALC)) {
+			Log.log(Log.CALC, Keys.toString(key)+" = "+Log.bigInteger(value));
+		}
 	}
 
-
 	/**
-	 * Send the specified values to all remote participants, in parallel.
+	 * Adds logging capability to {@link util.DataBackedObject#set}.
 	 */
-	public void broadcast(final String... keys) {
-		runWithEach(new ParticipantAction() {
-			public void run(RemoteParticipant p) {
-				p.send(keys);
+	protected void set(long key, BigInteger[] array) {
+		super.set(key, array);
+		if (Log.isEnabled(Log.CALC)) {
+			for (int i = 0; i < array.length; ++i) {
+				Log.log(Log.CALC, Keys.toString(Keys.index(key, i))+" = "+Log.bigInteger(array[i]));
 			}
-		});
+		}
 	}
 
 	/**
-	 * Broadcast an array of values.
+	 * Adds logging capability to {@link util.DataBackedObject#set}.
 	 */
-	public void broadcast(final String key, final int length) {
-		runWithEach(new ParticipantAction() {
-			public void run(RemoteParticipant p) {
-				for (int i = 0; i < length; ++i) {
-					p.send(key+"["+i+"]");
+	protected void set(long key, BigInteger[][] array) {
+		super.set(key, array);
+		if (Log.isEnabled(Log.CALC)) {
+			for (int i = 0; i < array.length; ++i) {
+				for (int j = 0; j < array[i].length; ++j) {
+					Log.log(Log.CALC, Keys.toString(Keys.index(key, i, j))+" = "+Log.bigInteger(array[i][j]));
 				}
 			}
-		});
+		}
+	}
+
+
+	/**
+	 * Start a batch of messages to all remote participants.
+	 *
+	 * @see RemoteParticipant#beginBatch
+	 */
+	public void beginBatch() {
+		for (RemoteParticipant p : participants) {
+			if (p != null) {
+				p.beginBatch();
+			}
+		}
+	}
+
+
+	/**
+	 * End a batch of messages to all remote participants.
+	 *
+	 * @see RemoteParticipant#endBatch
+	 */
+	public void endBatch() {
+		for (RemoteParticipant p : participants) {
+			if (p != null) {
+				p.endBatch();
+			}
+		}
+	}
+
+
+	/**
+	 * Send the specified values to all remote participants.
+	 * <p>
+	 * The values are encoded only once, and the same frames are used for all
+	 * participants. Within a batch, frames that fit in a participant's buffer
+	 * are copied there by the calling thread, which is cheaper than handing
+	 * the work over to another thread and keeps them in the batch. Otherwise
+	 * (outside of a batch, or for large values) sending may block on the
+	 * connection, so it is done in parallel by the participant actions (see
+	 * {@link #runWithEach}), and a slow participant does not hold back the
+	 * others or the calling thread.
+	 */
+	public void broadcast(long... keys) {
+		byte[][] frames = new byte[keys.length][];
+		for (int i = 0; i < keys.length; ++i) {
+			frames[i] = Frame.encode(keys[i], get(keys[i]));
+		}
+		broadcast(keys, frames);
+	}
+
+	/**
+	 * Broadcast an array of values.
+	 *
+	 * @see #broadcast(long...)
+	 */
+	public void broadcast(long key, int length) {
+		broadcast(new long[] {key}, new byte[][] {Frame.encode(key, get(key, length))});
 	}
 
 	/**
 	 * Broadcast a 2D array of values.
+	 *
+	 * @see #broadcast(long...)
 	 */
-	public void broadcast(final String key, final int length, final int length2) {
-		runWithEach(new ParticipantAction() {
-			public void run(RemoteParticipant p) {
-				for (int i = 0; i < length; ++i) {
-					p.send(key+"["+i+"]", length2);
-				}
+	public void broadcast(long key, int length, int length2) {
+		broadcast(new long[] {key}, new byte[][] {Frame.encode(key, get(key, length, length2))});
+	}
+
+
+	private void broadcast(final long[] keys, final byte[][] frames) {
+		for (final RemoteParticipant p : participants) {
+			if (p != null && !p.offer(keys, frames)) {
+				runInBackground(false, new Runnable() {
+					public void run() {
+						p.send(keys, frames);
+					}
+				});
 			}
-		});
+		}
+	}
+
+
+	/**
+	 * @see #broadcast(long...)
+	 */
+	public void broadcast(String... keys) {
+		long[] parsed = new long[keys.length];
+		for (int i = 0; i < keys.length; ++i) {
+			parsed[i] = Keys.parse(keys[i]);
+		}
+		broadcast(parsed);
+	}
+
+	/**
+	 * @see #broadcast(long, int)
+	 */
+	public void broadcast(String key, int length) {
+		broadcast(Keys.parse(key), length);
+	}
+
+	/**
+	 * @see #broadcast(long, int, int)
+	 */
+	public void broadcast(String key, int length, int length2) {
+		broadcast(Keys.parse(key), length, length2);
 	}
 
-}
\ No newline at end of file
+}
@@ -1,13 +1,16 @@
 package eu.jergus.crypto;
 
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
 
 import eu.jergus.crypto.util.DataBackedObject;
+import eu.jergus.crypto.util.Keys;
 import eu.jergus.crypto.util.Log;
+import eu.jergus.crypto.util.stream.BatchingOutputStream;
 
 /**
  * Represents one of the remote participants of a protocol. Stores all data
@@ -18,7 +21,12 @@ public class RemoteParticipant extends DataBackedObject {
 
 	private int id;
 	private InputStream in;
-	private OutputStream out;
+	private BatchingOutputStream out;
+
+	/**
+	 * Maximum time (in milliseconds) for which data is held back by a batch.
+	 */
+	private static final long MAX_BATCH_DELAY = 5;
 
 	/**
 	 * The Protocol object that created this Participant object.
@@ -34,9 +42,14 @@ public class RemoteParticipant extends DataBackedObject {
 	RemoteParticipant(int id, InputStream in, OutputStream out, Protocol protocol) {
 		this.id = id;
 		this.in = in;
-		this.out = new BufferedOutputStream(out, 65532);
-		// buffer size aligned to OutputStreamMultiplexer maximum length
 		this.protocol = protocol;
+		// buffer size aligned to OutputStreamMultiplexer maximum length;
+		// delayed flushes run on the protocol's executor
+		this.out = new BatchingOutputStream(out, 65532, MAX_BATCH_DELAY, new Executor() {
+			public void execute(Runnable command) {
+				RemoteParticipant.this.protocol.runInBackground(command);
+			}
+		});
 
 		startReceivingThread();
 	}
@@ -53,33 +66,20 @@ public class RemoteParticipant extends DataBackedObject {
 		Thread t = new Thread() {
 			public void run() {
 				try {
+					Frame.Reader reader = new Frame.Reader(in);
 					while (true) {
-						StringBuilder key = new StringBuilder();
-						while (true) {
-							int b = in.read();
-							if (b == -1) throw new IOException();
-							if (b == 0) break;
-							key.append((char) b);
-						}
-						if (key.length() == 0) throw new IOException();
-
-						int len = 0;
-						for (int i = 0; i < 4; ++i) {
-							int b = in.read();
-							if (b == -1) throw new IOException();
-							len = (len << 8) + b;
-						}
-
-						byte[] b = new byte[len];
-						if (in.read(b) != len) throw new IOException();
-
-						BigInteger value = new BigInteger(b);
+						int count = reader.read();
 						try {
-							set(key.toString(), value);
-							Log.log(Log.RECV, "#"+id+"  "+key+" = "+Log.bigInteger(value));
+							set(reader.keys, reader.values, count);
 						} catch (DuplicateKeyException e) {
-							Log.log(Log.WARN, "Duplicate key "+key+" received from #"+id);
+							Log.log(Log.WARN, "Duplicate key "+Keys.toString(e.getKey())+" received from #"+id);
 						}
+						if (Log.isEnabled(Log.RECV)) {
+							for (int i = 0; i < count; ++i) {
+								Log.log(Log.RECV, "#"+id+"  "+Keys.toString(reader.keys[i])+" = "+format(reader.values[i]));
+							}
+						}
+						Arrays.fill(reader.values, 0, count, null);
 					}
 				} catch (IOException e) {
 					Log.log(Log.WARN, "Lost connection to #"+id+".");
@@ -92,57 +92,158 @@ public class RemoteParticipant extends DataBackedObject {
 	}
 
 
+	/**
+	 * Format a received value for logging.
+	 */
+	private static String format(Object value) {
+		if (value instanceof BigInteger) {
+			return Log.bigInteger((BigInteger) value);
+		}
+		Object[] array = (Object[]) value;
+		return (value instanceof BigInteger[][] ? "2D array" : "array")+" of length "+array.length;
+	}
+
+
+	/**
+	 * Start a batch of messages to this participant. Until the matching
+	 * {@link #endBatch}, the sent values are collected and written to the
+	 * connection together (or after a short delay, see
+	 * {@link BatchingOutputStream}).
+	 */
+	public void beginBatch() {
+		out.beginBatch();
+	}
+
+
+	/**
+	 * End a batch of messages, sending the collected values.
+	 */
+	public void endBatch() {
+		try {
+			out.endBatch();
+		} catch (IOException e) {
+			Log.log(Log.WARN, "Failed to send data to #"+id+".");
+			kill();
+		}
+	}
+
+
 	/**
 	 * Sends the specified values from local (protocol) data to this
 	 * participant.
+	 * <p>
+	 * The values are flushed together at the end of the call (or at the end
+	 * of the current batch).
 	 */
-	public void send(String... keys) {
-		for (String key : keys) {
-			if (!key.matches("^[\\[\\]_0-9a-zA-Z]+$")) {
-				throw new IllegalArgumentException("Invalid key.");
+	public void send(long... keys) {
+		byte[][] frames = new byte[keys.length][];
+		for (int i = 0; i < keys.length; ++i) {
+			frames[i] = Frame.encode(keys[i], protocol.get(keys[i]));
+		}
+		send(keys, frames);
+	}
+
+
+	/**
+	 * Send an array of values to this participant, as a single frame.
+	 */
+	public void send(long key, int length) {
+		send(new long[] {key}, new byte[][] {Frame.encode(key, protocol.get(key, length))});
+	}
+
+	/**
+	 * Send a 2D array of values to this participant, as a single frame.
+	 */
+	public void send(long key, int length, int length2) {
+		send(new long[] {key}, new byte[][] {Frame.encode(key, protocol.get(key, length, length2))});
+	}
+
+
+	/**
+	 * Send already encoded frames, and flush them.
+	 * <p>
+	 * The frames are not modified, so the same frames can be sent to all
+	 * participants.
+	 */
+	void send(long[] keys, byte[][] frames) {
+		for (int i = 0; i < keys.length; ++i) {
+			write(keys[i], frames[i]);
+		}
+		flush();
+	}
+
+
+	/**
+	 * Send already encoded frames if that only copies them into the buffer
+	 * (see {@link BatchingOutputStream#canBuffer}), without blocking on the
+	 * connection.
+	 *
+	 * @return false if nothing was sent, because the frames would have to be
+	 *         written to the connection
+	 */
+	boolean offer(long[] keys, byte[][] frames) {
+		int length = 0;
+		for (byte[] frame : frames) {
+			length += frame.length;
+		}
+		synchronized (out) {
+			if (!out.canBuffer(length)) {
+				return false;
+			}
+			for (int i = 0; i < keys.length; ++i) {
+				write(keys[i], frames[i]);
 			}
-			byte[] value = protocol.get(key).toByteArray();
+		}
+		return true;
+	}
 
-			try {
-				synchronized (out) {
-					for (int i = 0; i < key.length(); ++i) {
-						out.write(key.charAt(i));
-					}
-					out.write(0);
 
-					out.write(value.length >> 24);
-					out.write(value.length >> 16);
-					out.write(value.length >> 8);
-					out.write(value.length);
-					out.write(value);
+	private void flush() {
+		try {
+			out.flush();
+		} catch (IOException e) {
+			Log.log(Log.WARN, "Failed to send data to #"+id+".");
+			kill();
+		}
+	}
 
-					out.flush();
-				}
-				Log.log(Log.SEND, key+" -> #"+id);
-			} catch (IOException e) {
-				Log.log(Log.WARN, "Failed to send "+key+" to #"+id+".");
-				kill();
+
+	private void write(long key, byte[] frame) {
+		try {
+			out.write(frame);
+			if (Log.isEnabled(Log.SEND)) {
+				Log.log(Log.SEND, Keys.toString(key)+" -> #"+id);
 			}
+		} catch (IOException e) {
+			Log.log(Log.WARN, "Failed to send "+Keys.toString(key)+" to #"+id+".");
+			kill();
 		}
 	}
 
 
 	/**
-	 * Send an array of values to this participant.
+	 * @see #send(long...)
 	 */
-	public void send(String key, int length) {
-		for (int i = 0; i < length; ++i) {
-			send(key+"["+i+"]");
+	public void send(String... keys) {
+		long[] parsed = new long[keys.length];
+		for (int i = 0; i < keys.length; ++i) {
+			parsed[i] = Keys.parse(keys[i]);
 		}
+		send(parsed);
+	}
+
+	/**
+	 * @see #send(long, int)
+	 */
+	public void send(String key, int length) {
+		send(Keys.parse(key), length);
 	}
 
 	/**
-	 * Send a 2D array of values to this participant.
+	 * @see #send(long, int, int)
 	 */
 	public void send(String key, int length, int length2) {
-		for (int i = 0; i < length; ++i) {
-			send(key+"["+i+"]", length2);
-		}
+		send(Keys.parse(key), length, length2);
 	}
 
-}
\ No newline at end of file
+}
@@ -3,8 +3,14 @@ package eu.jergus.crypto.util;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 import eu.jergus.crypto.util.stream.InputStreamDemultiplexer;
 import eu.jergus.crypto.util.stream.OutputStreamMultiplexer;
@@ -22,19 +28,43 @@ import eu.jergus.crypto.util.stream.OutputStreamMultiplexer;
  */
 public class ConnectionManager {
 
+	/**
+	 * Delay (in milliseconds) before the first retry of a refused connection.
+	 * It is doubled after each failed attempt, up to {@link #MAX_RETRY_DELAY}.
+	 */
+	private static final int INITIAL_RETRY_DELAY = 5;
+	private static final int MAX_RETRY_DELAY = 1000;
+
+	/**
+	 * Interval (in milliseconds) at which waiting for incoming connections
+	 * checks for failures of the other connections.
+	 */
+	private static final int ACCEPT_POLL = 100;
+
+	/**
+	 * Byte sent to all participants once all connections are established.
+	 */
+	private static final int READY = 0x5a;
+
+
 	/**
 	 * Number of participants.
 	 */
-	private int n;
+	protected final int n;
 
 	/**
 	 * Any exception thrown by the connecting threads. This is rethrown by the
 	 * connection manager.
 	 */
-	IOException exception = null;
+	volatile IOException exception = null;
 
 	Socket[] sockets;
 
+	/**
+	 * Time (in nanoseconds) it took to establish each connection.
+	 */
+	long[] setupTimes;
+
 	InputStreamDemultiplexer[] ism;
 	OutputStreamMultiplexer[] osm;
 
@@ -68,116 +98,321 @@ public class ConnectionManager {
 	 * @param multiplex     number of input/output streams required for each connection
 	 * @throws IOException  any exception thrown while connecting
 	 */
-	public ConnectionManager(final int localId, final String[] addresses, int multiplex) throws IOException {
-		n = addresses.length;
-		sockets = new Socket[n];
+	public ConnectionManager(int localId, String[] addresses, int multiplex) throws IOException {
+		this(localId, addresses, multiplex, 0);
+	}
+
+
+	/**
+	 * Initialize connections to the specified addresses within the specified
+	 * time, and provide the specified number of input/output streams for
+	 * each connection.
+	 *
+	 * @param localId       ID of the local participant (whose address is ignored)
+	 * @param addresses     array of participants' addressess (in address:port format)
+	 * @param multiplex     number of input/output streams required for each connection
+	 * @param timeout       time limit for establishing all connections in
+	 *                      milliseconds, or 0 for no limit
+	 * @throws IOException  any exception thrown while connecting (a
+	 *                      SocketTimeoutException if the time limit passed)
+	 */
+	public ConnectionManager(int localId, String[] addresses, int multiplex, int timeout) throws IOException {
+		this(addresses.length, multiplex);
+
+		if (multiplex < 1 || multiplex > 256) {
+			throw new IllegalArgumentException("Multiplex ratio must be between 1 and 256.");
+		}
 
 		if (localId < 0 || localId >= n) {
 			throw new IllegalArgumentException("localId must be between 0 and addresses.length-1.");
 		}
-		if (multiplex < 1 || multiplex > 256) {
-			throw new IllegalArgumentException("Multiplex ratio must be between 1 and 256.");
+
+		connect(localId, addresses, false, timeout);
+
+		// prepare streams
+		for (int i = 0; i < n; ++i) {
+			if (i != localId) {
+				if (multiplex == 1) {
+					inputStreams[i][0] = sockets[i].getInputStream();
+					outputStreams[i][0] = sockets[i].getOutputStream();
+				} else {
+					ism[i] = new InputStreamDemultiplexer(sockets[i].getInputStream());
+					osm[i] = new OutputStreamMultiplexer(sockets[i].getOutputStream());
+					for (int j = 0; j < multiplex; ++j) {
+						inputStreams[i][j] = ism[i].getInputStream(j);
+						outputStreams[i][j] = osm[i].getOutputStream(j);
+					}
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Initialize the fields common to all ways of connecting (used by
+	 * subclasses that set up the streams themselves).
+	 *
+	 * @param n          number of participants
+	 * @param multiplex  number of input/output streams required for each connection
+	 */
+	protected ConnectionManager(int n, int multiplex) {
+		if (multiplex < 1) {
+			throw new IllegalArgumentException("Multiplex ratio must be at least 1.");
 		}
 
+		this.n = n;
+		sockets = new Socket[n];
+		setupTimes = new long[n];
+
+		ism = new InputStreamDemultiplexer[n];
+		osm = new OutputStreamMultiplexer[n];
+
+		inputStreams = new InputStream[n][multiplex];
+		outputStreams = new OutputStream[n][multiplex];
+	}
+
+
+	/**
+	 * Establish a connection to each of the participants and store the
+	 * sockets in {@link #sockets}, without a time limit.
+	 *
+	 * @see #connect(int, String[], boolean, int)
+	 */
+	protected void connect(int localId, String[] addresses, boolean channels) throws IOException {
+		connect(localId, addresses, channels, 0);
+	}
+
+
+	/**
+	 * Establish a connection to each of the participants and store the
+	 * sockets in {@link #sockets}.
+	 * <p>
+	 * Every participant connects to all participants with lower IDs, and
+	 * sends them its ID. Refused connections are retried with exponentially
+	 * growing delays, and the IDs of the accepted connections are read
+	 * concurrently. Once all connections are established, each participant
+	 * sends a byte to all others and waits for theirs, so the method returns
+	 * only after all participants have finished connecting.
+	 *
+	 * @param localId    ID of the local participant (whose address is ignored)
+	 * @param addresses  array of participants' addressess (in address:port format)
+	 * @param channels   true to create the sockets from (blocking) socket
+	 *                   channels
+	 * @param timeout    time limit for the whole setup in milliseconds, or 0
+	 *                   for no limit
+	 * @throws IOException  any exception thrown while connecting
+	 */
+	protected void connect(final int localId, final String[] addresses, final boolean channels, int timeout) throws IOException {
+		final long start = System.nanoTime();
+		final long deadline = timeout > 0 ? start + timeout * 1000000L : Long.MAX_VALUE;
+		List<Thread> threads = new ArrayList<Thread>();
+
 		// connect to all lower-ID players
-		Thread[] threads = new Thread[localId];
 		for (int i = 0; i < localId; ++i) {
 			final int cur = i;
-			threads[i] = new Thread() {
+			Thread t = new Thread() {
 				public void run() {
-					String address = addresses[cur].split(":")[0];
-					int port = Integer.parseInt(addresses[cur].split(":")[1]);
-
-					while (true) {
-						try {
-							sockets[cur] = new Socket(address, port);
-							break;
-						} catch (IOException e) {
-							try {
-								Thread.sleep(1000);
-							} catch (InterruptedException ie) {
-							}
-						}
-					}
-
 					try {
-						sockets[cur].getOutputStream().write(localId >> 8);
-						sockets[cur].getOutputStream().write(localId);
-
-						Log.print("["+cur+"]");
+						Socket s = open(addresses[cur], channels, deadline);
+						s.getOutputStream().write(new byte[] {(byte) (localId >> 8), (byte) localId});
+						established(cur, s, start);
 					} catch (IOException e) {
-						exception = e;
+						failed(e);
 					}
 				}
 			};
-			threads[i].start();
+			threads.add(t);
+			t.start();
 		}
-		
-		
 
 		// wait for connection from all higher-ID players
 		int port = Integer.parseInt(addresses[localId].split(":")[1]);
 
-		ServerSocket ss = new ServerSocket(port);
-		for (int i = 0; i < n-localId-1; ++i) {
-			Socket s = ss.accept();
-			int idHi = s.getInputStream().read();
-			if (idHi == -1) throw new IOException("Unexpected end of stream.");
-			int idLo = s.getInputStream().read();
-			if (idLo == -1) throw new IOException("Unexpected end of stream.");
-			int id = (idHi << 8) + idLo;
-
-			if (id <= localId || id >= n || sockets[id] != null) {
-				throw new IOException("Unexpected connection from ID "+id+".");
-			}
+		ServerSocket ss = channels ? ServerSocketChannel.open().socket() : new ServerSocket();
+		try {
+			ss.bind(new InetSocketAddress(port));
+			for (int i = 0; i < n-localId-1 && exception == null; ) {
+				ss.setSoTimeout(deadline == Long.MAX_VALUE ? ACCEPT_POLL : Math.min(remaining(deadline), ACCEPT_POLL));
+				final Socket s;
+				try {
+					s = ss.accept();
+				} catch (SocketTimeoutException e) {
+					remaining(deadline);
+					continue;
+				}
+				++i;
 
-			sockets[id] = s;
-			Log.print("["+id+"]");
+				Thread t = new Thread() {
+					public void run() {
+						try {
+							s.setSoTimeout(remaining(deadline));
+							InputStream in = s.getInputStream();
+							int idHi = in.read();
+							int idLo = idHi == -1 ? -1 : in.read();
+							if (idLo == -1) throw new IOException("Unexpected end of stream.");
+							s.setSoTimeout(0);
+
+							int id = (idHi << 8) + idLo;
+							if (id <= localId || id >= n) {
+								throw new IOException("Unexpected connection from ID "+id+".");
+							}
+							established(id, s, start);
+						} catch (IOException e) {
+							try {
+								s.close();
+							} catch (IOException ce) {}
+							failed(e);
+						}
+					}
+				};
+				threads.add(t);
+				t.start();
+			}
+		} catch (IOException e) {
+			failed(e);
+		} finally {
+			ss.close();
 		}
 
-		ss.close();
-
 		// wait for everything to finish
-		for (int i = 0; i < localId; ++i) {
+		for (Thread t : threads) {
 			while (true) {
 				try {
-					threads[i].join();
+					t.join();
 					break;
 				} catch (InterruptedException e) {
 				}
 			}
 		}
+
+		if (exception == null) {
+			try {
+				awaitReady(localId, deadline);
+			} catch (IOException e) {
+				failed(e);
+			}
+		}
 		Log.println("");
 
 		if (exception != null) {
+			for (int i = 0; i < n; ++i) {
+				if (sockets[i] != null) {
+					try {
+						sockets[i].close();
+					} catch (IOException e) {}
+					sockets[i] = null;
+				}
+			}
 			throw exception;
 		}
+	}
 
-		// prepare streams
-		ism = new InputStreamDemultiplexer[n];
-		osm = new OutputStreamMultiplexer[n];
 
-		inputStreams = new InputStream[n][multiplex];
-		outputStreams = new OutputStream[n][multiplex];
+	/**
+	 * Connect to the specified address, retrying refused connections until
+	 * the deadline (or until another connection fails).
+	 */
+	private Socket open(String address, boolean channels, long deadline) throws IOException {
+		InetSocketAddress target = new InetSocketAddress(address.split(":")[0], Integer.parseInt(address.split(":")[1]));
+
+		int delay = INITIAL_RETRY_DELAY;
+		while (true) {
+			Socket s = channels ? SocketChannel.open().socket() : new Socket();
+			try {
+				s.connect(target, remaining(deadline));
+				return s;
+			} catch (SocketTimeoutException e) {
+				s.close();
+				throw e;
+			} catch (IOException e) {
+				s.close();
+				if (exception != null) {
+					throw e;
+				}
+				if (System.nanoTime() + delay * 1000000L >= deadline) {
+					SocketTimeoutException te = new SocketTimeoutException("Connection setup timed out.");
+					te.initCause(e);
+					throw te;
+				}
+			}
+
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException ie) {
+			}
+			delay = Math.min(2 * delay, MAX_RETRY_DELAY);
+		}
+	}
 
+
+	/**
+	 * Store an established connection and its setup time.
+	 */
+	synchronized private void established(int id, Socket s, long start) throws IOException {
+		if (sockets[id] != null) {
+			throw new IOException("Unexpected connection from ID "+id+".");
+		}
+		sockets[id] = s;
+		setupTimes[id] = System.nanoTime() - start;
+		Log.print("["+id+"]");
+	}
+
+
+	synchronized private void failed(IOException e) {
+		if (exception == null) {
+			exception = e;
+		}
+	}
+
+
+	/**
+	 * Exchange a readiness byte with all participants.
+	 */
+	private void awaitReady(int localId, long deadline) throws IOException {
 		for (int i = 0; i < n; ++i) {
 			if (i != localId) {
-				if (multiplex == 1) {
-					inputStreams[i][0] = sockets[i].getInputStream();
-					outputStreams[i][0] = sockets[i].getOutputStream();
-				} else {
-					ism[i] = new InputStreamDemultiplexer(sockets[i].getInputStream());
-					osm[i] = new OutputStreamMultiplexer(sockets[i].getOutputStream());
-					for (int j = 0; j < multiplex; ++j) {
-						inputStreams[i][j] = ism[i].getInputStream(j);
-						outputStreams[i][j] = osm[i].getOutputStream(j);
-					}
+				sockets[i].getOutputStream().write(READY);
+			}
+		}
+		for (int i = 0; i < n; ++i) {
+			if (i != localId) {
+				sockets[i].setSoTimeout(remaining(deadline));
+				int b = sockets[i].getInputStream().read();
+				if (b != READY) {
+					throw new IOException(b == -1 ? "Unexpected end of stream." : "Unexpected data from ID "+i+".");
 				}
+				sockets[i].setSoTimeout(0);
 			}
 		}
 	}
 
 
+	/**
+	 * Return the number of milliseconds until the deadline, as a socket
+	 * timeout (0 if there is no deadline).
+	 *
+	 * @throws SocketTimeoutException  if the deadline has passed
+	 */
+	private static int remaining(long deadline) throws SocketTimeoutException {
+		if (deadline == Long.MAX_VALUE) return 0;
+		long res = (deadline - System.nanoTime()) / 1000000L;
+		if (res <= 0) {
+			throw new SocketTimeoutException("Connection setup timed out.");
+		}
+		return (int) Math.min(res, Integer.MAX_VALUE);
+	}
+
+
+	/**
+	 * Get the time it took to establish the connection to the specified
+	 * participant, in nanoseconds since the start of the setup (0 if not
+	 * known).
+	 */
+	public long getSetupTime(int id) {
+		return setupTimes[id];
+	}
+
+
 	/**
 	 * Get the first partial input stream of the specified participant.
 	 */
@@ -1,14 +1,20 @@
 package eu.jergus.crypto.util;
 
 import java.math.BigInteger;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import eu.jergus.crypto.exception.DeadObjectException;
 
 /**
  * Provides its subclasses with capabilities to store and query data.
  * <p>
+ * Values are identified by keys packed into longs (see {@link Keys}). For
+ * convenience, all methods are also available with keys written as strings.
+ * <p>
  * Transparently handles synchronization.
  */
 public abstract class DataBackedObject {
@@ -17,21 +23,129 @@ public abstract class DataBackedObject {
 	 * Thrown when attempting to assign a new value to an already existing key.
 	 */
 	protected static class DuplicateKeyException extends RuntimeException {
-		private String key;
+		private long key;
 
-		private DuplicateKeyException(String key) {
-			super("Duplicate key: " + key);
+		private DuplicateKeyException(long key) {
+			super("Duplicate key: " + Keys.toString(key));
+			this.key = key;
 		}
 
-		public String getKey() {
+		public long getKey() {
 			return key;
 		}
 	}
 
 
-	private Map<String, BigInteger> data = new HashMap<String, BigInteger>();
+	/**
+	 * Holds the value assigned to one key, and serves as the monitor for
+	 * threads waiting for this key only.
+	 * <p>
+	 * The value is a BigInteger, or a BigInteger[] or BigInteger[][] if a
+	 * whole array was assigned to the key at once.
+	 */
+	private static class Slot {
+		private volatile Object value;
+
+		/**
+		 * Set when some thread waits for a key having this key as a prefix.
+		 * Assigning an array to this key must then also complete the slots of
+		 * its elements.
+		 */
+		private volatile boolean descendantsWaiting;
+
+		/**
+		 * Actions waiting for the value, see {@link DataBackedObject#whenAvailable}.
+		 */
+		private List<Runnable> listeners;
+
+		/**
+		 * Remove and return all waiting actions (must hold the lock).
+		 */
+		private List<Runnable> takeListeners() {
+			List<Runnable> res = listeners;
+			listeners = null;
+			return res;
+		}
+	}
+
+
+	private ConcurrentMap<Long, Slot> data = new ConcurrentHashMap<Long, Slot>();
+
+	private volatile boolean dead = false;
+
+
+	/**
+	 * Return the slot for the specified key, creating an empty one if needed.
+	 */
+	private Slot slot(long key) {
+		Slot slot = data.get(key);
+		if (slot == null) {
+			Slot created = new Slot();
+			slot = data.putIfAbsent(key, created);
+			if (slot == null) {
+				slot = created;
+			}
+		}
+		return slot;
+	}
+
 
-	private boolean dead = false;
+	/**
+	 * Return the value of the specified key, either assigned directly or as
+	 * an element of an array assigned to one of its prefixes, or null if there
+	 * is no such value yet.
+	 */
+	private Object lookup(long key) {
+		Slot slot = data.get(key);
+		if (slot != null && slot.value != null) {
+			return slot.value;
+		}
+		for (int depth = Keys.depth(key) - 1; depth >= 0; --depth) {
+			slot = data.get(Keys.prefix(key, depth));
+			if (slot != null) {
+				Object value = slot.value;
+				if (value != null) {
+					return element(value, key, depth);
+				}
+			}
+		}
+		return null;
+	}
+
+
+	/**
+	 * Return the element of an array (assigned to the prefix of given depth)
+	 * that corresponds to the specified key.
+	 */
+	private static Object element(Object value, long key, int depth) {
+		for (int i = depth; i < Keys.depth(key); ++i) {
+			int index = Keys.getIndex(key, i);
+			if (!(value instanceof Object[]) || index >= ((Object[]) value).length) {
+				throw new IllegalStateException("Key "+Keys.toString(key)+" is not part of the value of "+Keys.toString(Keys.prefix(key, depth))+".");
+			}
+			value = ((Object[]) value)[index];
+		}
+		return value;
+	}
+
+
+	/**
+	 * Prepare for waiting for the specified key, so that its slot is completed
+	 * when an array containing it is assigned to one of its prefixes.
+	 * <p>
+	 * The slot of the key must exist before the prefixes are marked, and the
+	 * value must be looked up after that, so that an array assigned
+	 * concurrently either completes the slot or is found by the lookup.
+	 *
+	 * @return the value, if it is already available
+	 */
+	private Object prepareWait(long key) {
+		slot(key);
+		for (int depth = 0; depth < Keys.depth(key); ++depth) {
+			slot(Keys.prefix(key, depth)).descendantsWaiting = true;
+		}
+		return lookup(key);
+	}
 
 
 	/**
@@ -40,21 +154,176 @@ public abstract class DataBackedObject {
 	 * This causes all waiting {@link #get} calls to immediately fail. All
 	 * subsequent {@link #get} calls also fail, unless the requested key is set.
 	 */
-	synchronized public void kill() {
+	public void kill() {
 		dead = true;
-		notifyAll();
+		for (Slot slot : data.values()) {
+			List<Runnable> waiting;
+			synchronized (slot) {
+				slot.notifyAll();
+				waiting = slot.takeListeners();
+			}
+			if (waiting != null) {
+				run(waiting);
+			}
+		}
 	}
 
 
 	/**
 	 * Assign the specified value to the given key.
+	 * <p>
+	 * Only the threads waiting for this key are woken up.
+	 */
+	protected void set(long key, BigInteger value) {
+		store(key, value, null);
+	}
+
+
+	/**
+	 * Assign several values at once.
+	 * <p>
+	 * The actions waiting for any of the values (see {@link #whenAvailable})
+	 * are only run after all the values are assigned. If some of the keys
+	 * already have a value, the remaining values are still assigned, and
+	 * then DuplicateKeyException is thrown.
+	 *
+	 * @param keys    the keys
+	 * @param values  the values (BigInteger, BigInteger[] or BigInteger[][])
+	 * @param count   number of values to assign
+	 */
+	protected void set(long[] keys, Object[] values, int count) {
+		List<Runnable> actions = new ArrayList<Runnable>();
+		DuplicateKeyException duplicate = null;
+		for (int i = 0; i < count; ++i) {
+			if (!(values[i] instanceof BigInteger || values[i] instanceof BigInteger[] || values[i] instanceof BigInteger[][])) {
+				throw new IllegalArgumentException("Unsupported value for key "+Keys.toString(keys[i])+".");
+			}
+			try {
+				store(keys[i], values[i], actions);
+			} catch (DuplicateKeyException e) {
+				if (duplicate == null) duplicate = e;
+			}
+		}
+		run(actions);
+		if (duplicate != null) {
+			throw duplicate;
+		}
+	}
+
+
+	/**
+	 * Assign a value (BigInteger or array) to the given key, and complete the
+	 * slots of its elements that are waited for.
+	 *
+	 * @param deferred  list to add the waiting actions to, or null to run them
+	 *                  immediately
+	 */
+	private void store(long key, Object value, List<Runnable> deferred) {
+		for (int depth = 0; depth < Keys.depth(key); ++depth) {
+			Slot prefix = data.get(Keys.prefix(key, depth));
+			if (prefix != null && prefix.value != null) {
+				throw new DuplicateKeyException(key);
+			}
+		}
+		Slot slot = slot(key);
+		complete(slot, key, value, deferred);
+		if (value instanceof Object[] && slot.descendantsWaiting) {
+			completeElements(key, (Object[]) value, deferred);
+		}
+	}
+
+
+	private void complete(Slot slot, long key, Object value, List<Runnable> deferred) {
+		List<Runnable> waiting;
+		synchronized (slot) {
+			if (slot.value != null) {
+				throw new DuplicateKeyException(key);
+			}
+			slot.value = value;
+			slot.notifyAll();
+			waiting = slot.takeListeners();
+		}
+		if (waiting != null) {
+			if (deferred != null) {
+				deferred.addAll(waiting);
+			} else {
+				run(waiting);
+			}
+		}
+	}
+
+
+	private void completeElements(long key, Object[] array, List<Runnable> deferred) {
+		for (int i = 0; i < array.length; ++i) {
+			long elementKey = Keys.index(key, i);
+			Slot slot = data.get(elementKey);
+			if (slot != null) {
+				complete(slot, elementKey, array[i], deferred);
+				if (array[i] instanceof Object[] && slot.descendantsWaiting) {
+					completeElements(elementKey, (Object[]) array[i], deferred);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Run the given action as soon as a value is assigned to the specified key
+	 * (immediately, if it already is), or as soon as this object dies.
+	 * <p>
+	 * The action is run by the thread that assigns the value or kills the
+	 * object, so it should only hand the actual work over to another thread.
+	 * It can then call {@link #get} without blocking (which throws
+	 * DeadObjectException if the object died before the value was set).
 	 */
-	synchronized protected void set(String key, BigInteger value) {
-		if (data.containsKey(key)) {
-			throw new DuplicateKeyException(key);
+	public void whenAvailable(long key, Runnable action) {
+		if (prepareWait(key) == null) {
+			Slot slot = slot(key);
+			synchronized (slot) {
+				if (slot.value == null && !dead) {
+					if (slot.listeners == null) {
+						slot.listeners = new ArrayList<Runnable>();
+					}
+					slot.listeners.add(action);
+					return;
+				}
+			}
+		}
+		action.run();
+	}
+
+
+	private static void run(List<Runnable> actions) {
+		for (Runnable action : actions) {
+			action.run();
+		}
+	}
+
+
+	/**
+	 * Return the value assigned to the specified key, blocking the thread
+	 * until it becomes available.
+	 */
+	private Object await(long key) throws DeadObjectException {
+		Object value = lookup(key);
+		if (value != null) {
+			return value;
+		}
+		value = prepareWait(key);
+		if (value != null) {
+			return value;
+		}
+		Slot slot = slot(key);
+		synchronized (slot) {
+			while (slot.value == null) {
+				if (dead) throw new DeadObjectException();
+				try {
+					slot.wait();
+				} catch (InterruptedException e) {
+				}
+			}
+			return slot.value;
 		}
-		data.put(key, value);
-		notifyAll();
 	}
 
 
@@ -69,56 +338,135 @@ public abstract class DataBackedObject {
 	 *
 	 * @throws DeadObjectException  if this object is dead
 	 */
-	synchronized public BigInteger get(String key) throws DeadObjectException {
-		while (!data.containsKey(key)) {
-			if (dead) throw new DeadObjectException();
-			try {
-				wait();
-			} catch (InterruptedException e) {
-			}
+	public BigInteger get(long key) throws DeadObjectException {
+		Object value = await(key);
+		if (!(value instanceof BigInteger)) {
+			throw new IllegalStateException("Key "+Keys.toString(key)+" holds an array.");
 		}
-		return data.get(key);
+		return (BigInteger) value;
 	}
 
 
 	/**
 	 * Set an array of values.
+	 * <p>
+	 * The array is stored as a single value (its elements are still
+	 * available under the indexed keys), so it must not be modified
+	 * afterwards.
 	 */
-	protected void set(String key, BigInteger[] array) {
-		for (int i = 0; i < array.length; ++i) {
-			set(key+"["+i+"]", array[i]);
-		}
+	protected void set(long key, BigInteger[] array) {
+		store(key, array, null);
 	}
 
 	/**
 	 * Set a 2D array of values.
+	 *
+	 * @see #set(long, BigInteger[])
 	 */
-	protected void set(String key, BigInteger[][] array) {
-		for (int i = 0; i < array.length; ++i) {
-			set(key+"["+i+"]", array[i]);
-		}
+	protected void set(long key, BigInteger[][] array) {
+		store(key, array, null);
 	}
 
 	/**
 	 * Get an array of values.
+	 * <p>
+	 * The values may have been set as a whole, or one by one.
 	 */
-	public BigInteger[] get(String key, int length) throws DeadObjectException {
+	public BigInteger[] get(long key, int length) throws DeadObjectException {
+		Object value = lookup(key);
+		if (value instanceof BigInteger[]) {
+			return copy((BigInteger[]) value, key, length);
+		}
 		BigInteger[] res = new BigInteger[length];
 		for (int i = 0; i < length; ++i) {
-			res[i] = get(key+"["+i+"]");
+			res[i] = get(Keys.index(key, i));
 		}
 		return res;
 	}
 
 	/**
 	 * Get a 2D array of values.
+	 *
+	 * @see #get(long, int)
 	 */
-	public BigInteger[][] get(String key, int length, int length2) throws DeadObjectException {
+	public BigInteger[][] get(long key, int length, int length2) throws DeadObjectException {
+		Object value = lookup(key);
 		BigInteger[][] res = new BigInteger[length][];
+		if (value instanceof BigInteger[][]) {
+			BigInteger[][] array = (BigInteger[][]) value;
+			if (array.length < length) {
+				throw new IllegalStateException("Key "+Keys.toString(key)+" holds an array of length "+array.length+".");
+			}
+			for (int i = 0; i < length; ++i) {
+				res[i] = copy(array[i], Keys.index(key, i), length2);
+			}
+			return res;
+		}
 		for (int i = 0; i < length; ++i) {
-			res[i] = get(key+"["+i+"]", length2);
+			res[i] = get(Keys.index(key, i), length2);
 		}
 		return res;
 	}
 
-}
\ No newline at end of file
+
+	/**
+	 * Copy the first length elements of an array value.
+	 */
+	private static BigInteger[] copy(BigInteger[] array, long key, int length) {
+		if (array.length < length) {
+			throw new IllegalStateException("Key "+Keys.toString(key)+" holds an array of length "+array.length+".");
+		}
+		return Arrays.copyOf(array, length);
+	}
+
+
+	/**
+	 * @see #set(long, BigInteger)
+	 */
+	protected void set(String key, BigInteger value) {
+		set(Keys.parse(key), value);
+	}
+
+	/**
+	 * @see #set(long, BigInteger[])
+	 */
+	protected void set(String key, BigInteger[] array) {
+		set(Keys.parse(key), array);
+	}
+
+	/**
+	 * @see #set(long, BigInteger[][])
+	 */
+	protected void set(String key, BigInteger[][] array) {
+		set(Keys.parse(key), array);
+	}
+
+	/**
+	 * @see #whenAvailable(long, Runnable)
+	 */
+	public void whenAvailable(String key, Runnable action) {
+		whenAvailable(Keys.parse(key), action);
+	}
+
+	/**
+	 * @see #get(long)
+	 */
+	public BigInteger get(String key) throws DeadObjectException {
+		return get(Keys.parse(key));
+	}
+
+	/**
+	 * @see #get(long, int)
+	 */
+	public BigInteger[] get(String key, int length) throws DeadObjectException {
+		return get(Keys.parse(key), length);
+	}
+
+	/**
+	 * @see #get(long, int, int)
+	 */
+	public BigInteger[][] get(String key, int length, int length2) throws DeadObjectException {
+		return get(Keys.parse(key), length, length2);
+	}
+
+}
@@ -0,0 +1,265 @@
+package eu.jergus.crypto.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Wraps the streams of another ConnectionManager to emulate a slower
+ * network: every link gets a one-way latency, a random jitter and a
+ * bandwidth limit.
+ * <p>
+ * Data written to an output stream is delivered to the underlying stream
+ * once it would have arrived over the emulated link. Each link has its own
+ * delivery thread, which takes the written chunks from a DelayQueue in the
+ * order of their arrival times, so a participant that stops reading only
+ * holds back its own link. Each side only delays its own output, so the
+ * latency applies once in each direction.
+ * <p>
+ * All partial streams of a connection share the link (and its bandwidth).
+ * The order of the data on a link is preserved, even with jitter.
+ */
+public class EmulatedConnectionManager extends ConnectionManager {
+
+	/**
+	 * Number of bytes that can be in transit over one link before the
+	 * writing threads are blocked.
+	 */
+	private static final long MAX_IN_TRANSIT = 1 << 20;
+
+
+	/**
+	 * Parameters and state of the link to one participant, and the thread
+	 * delivering its chunks.
+	 */
+	private class Link implements Runnable {
+		private volatile long latency;
+		private volatile long jitter;
+		private volatile long bandwidth;
+
+		/**
+		 * Time (in nanoseconds) when the link finishes transmitting the
+		 * data written so far, and when the last chunk arrives.
+		 */
+		private long busyUntil = 0;
+		private long lastArrival = 0;
+
+		/**
+		 * Number of written bytes that were not delivered yet.
+		 */
+		private long inTransit = 0;
+
+		private IOException exception;
+
+		private final DelayQueue<Chunk> queue = new DelayQueue<Chunk>();
+
+		private final Thread thread = new Thread(this);
+
+		private Link() {
+			thread.setDaemon(true);
+		}
+
+		public void run() {
+			while (!closed) {
+				Chunk c;
+				try {
+					c = queue.take();
+				} catch (InterruptedException e) {
+					continue;
+				}
+				IOException exception = null;
+				try {
+					c.out.write(c.data);
+					c.out.flush();
+				} catch (IOException e) {
+					exception = e;
+				}
+				delivered(c, exception);
+			}
+		}
+
+		/**
+		 * Schedule the delivery of a chunk, waiting while too much data is
+		 * in transit.
+		 */
+		synchronized private void send(OutputStream out, byte[] data) throws IOException {
+			while (inTransit > MAX_IN_TRANSIT && exception == null && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+				}
+			}
+			if (exception != null) throw exception;
+			if (closed) throw new IOException("Stream closed.");
+
+			long now = System.nanoTime();
+			busyUntil = Math.max(busyUntil, now);
+			if (bandwidth > 0) {
+				busyUntil += data.length * 1000000000L / bandwidth;
+			}
+			long arrival = busyUntil + TimeUnit.MILLISECONDS.toNanos(latency);
+			if (jitter > 0) {
+				arrival += (long) (random.nextDouble() * TimeUnit.MILLISECONDS.toNanos(jitter));
+			}
+			arrival = Math.max(arrival, lastArrival);
+			lastArrival = arrival;
+
+			inTransit += data.length;
+			queue.add(new Chunk(out, data, arrival));
+		}
+
+		synchronized private void delivered(Chunk c, IOException e) {
+			inTransit -= c.data.length;
+			if (e != null && exception == null) {
+				exception = e;
+			}
+			notifyAll();
+		}
+	}
+
+
+	/**
+	 * A chunk of data on its way over a link.
+	 */
+	private static class Chunk implements Delayed {
+		private static final AtomicLong counter = new AtomicLong();
+
+		private final OutputStream out;
+		private final byte[] data;
+		private final long arrival;
+
+		/**
+		 * Sequence number, to keep the order of chunks with equal arrival times.
+		 */
+		private final long seq = counter.getAndIncrement();
+
+		private Chunk(OutputStream out, byte[] data, long arrival) {
+			this.out = out;
+			this.data = data;
+			this.arrival = arrival;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(arrival - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		public int compareTo(Delayed o) {
+			Chunk c = (Chunk) o;
+			if (arrival != c.arrival) {
+				return arrival < c.arrival ? -1 : 1;
+			}
+			return seq < c.seq ? -1 : (seq == c.seq ? 0 : 1);
+		}
+	}
+
+
+	/**
+	 * An output stream sending its data over an emulated link.
+	 */
+	private static class EmulatedOutputStream extends OutputStream {
+		private final Link link;
+		private final OutputStream out;
+
+		private EmulatedOutputStream(Link link, OutputStream out) {
+			this.link = link;
+			this.out = out;
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			byte[] data = new byte[len];
+			System.arraycopy(b, off, data, 0, len);
+			link.send(out, data);
+		}
+	}
+
+
+	private final ConnectionManager cm;
+
+	private final Link[] links;
+
+	private final Random random = new Random();
+
+	private volatile boolean closed = false;
+
+
+	/**
+	 * Wrap the streams of the given ConnectionManager, with the same
+	 * parameters for all links (see {@link #setLink}).
+	 *
+	 * @param cm         the ConnectionManager providing the actual connections
+	 * @param latency    one-way latency in milliseconds
+	 * @param jitter     maximum random delay added to the latency, in milliseconds
+	 * @param bandwidth  bytes per second, or 0 for unlimited
+	 */
+	public EmulatedConnectionManager(ConnectionManager cm, long latency, long jitter, long bandwidth) {
+		super(cm.n, multiplex(cm));
+		this.cm = cm;
+		setupTimes = cm.setupTimes;
+
+		links = new Link[n];
+		for (int i = 0; i < n; ++i) {
+			if (cm.outputStreams[i][0] != null) {
+				links[i] = new Link();
+				setLink(i, latency, jitter, bandwidth);
+				for (int j = 0; j < inputStreams[i].length; ++j) {
+					inputStreams[i][j] = cm.inputStreams[i][j];
+					outputStreams[i][j] = new EmulatedOutputStream(links[i], cm.outputStreams[i][j]);
+				}
+				links[i].thread.start();
+			}
+		}
+	}
+
+
+	private static int multiplex(ConnectionManager cm) {
+		return cm.outputStreams[0].length;
+	}
+
+
+	/**
+	 * Change the parameters of the link to the specified participant. This
+	 * applies to data written afterwards.
+	 *
+	 * @param id         ID of the remote participant
+	 * @param latency    one-way latency in milliseconds
+	 * @param jitter     maximum random delay added to the latency, in milliseconds
+	 * @param bandwidth  bytes per second, or 0 for unlimited
+	 */
+	public void setLink(int id, long latency, long jitter, long bandwidth) {
+		if (latency < 0 || jitter < 0 || bandwidth < 0) {
+			throw new IllegalArgumentException("Link parameters must not be negative.");
+		}
+		Link link = links[id];
+		link.latency = latency;
+		link.jitter = jitter;
+		link.bandwidth = bandwidth;
+	}
+
+
+	/**
+	 * Stop the delivery threads (data in transit is discarded) and close the
+	 * underlying ConnectionManager.
+	 */
+	public void close() {
+		closed = true;
+		for (Link link : links) {
+			if (link != null) {
+				link.thread.interrupt();
+				synchronized (link) {
+					link.notifyAll();
+				}
+			}
+		}
+		cm.close();
+	}
+
+}
@@ -0,0 +1,180 @@
+package eu.jergus.crypto.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Compact representation of the keys that name protocol values.
+ * <p>
+ * A key consists of a name and up to three indexes, and is written as
+ * name[i][j][k]. It is packed into a single long, so that keys can be built,
+ * compared, hashed and sent without allocating any strings:
+ * <pre>
+ * bits 63-48  name ID
+ * bits 47-46  number of indexes
+ * bits 45-31  first index
+ * bits 30-16  second index
+ * bits 15-1   third index
+ * </pre>
+ * Name IDs are derived from the names' hash codes, so they are the same in
+ * all participants' programs. Names are registered using {@link #name}, which
+ * should be done once (e.g. in a static initializer).
+ */
+public class Keys {
+
+	/**
+	 * Maximum number of indexes in a key.
+	 */
+	public static final int MAX_DEPTH = 3;
+
+	/**
+	 * Maximum value of an index.
+	 */
+	public static final int MAX_INDEX = (1 << 15) - 1;
+
+	private static final int NAME_SHIFT = 48;
+	private static final int DEPTH_SHIFT = 46;
+
+	private static final ConcurrentMap<Integer, String> names = new ConcurrentHashMap<Integer, String>();
+
+
+	/**
+	 * Register a name and return the key consisting of this name only.
+	 *
+	 * @throws IllegalArgumentException  if the name contains characters other
+	 *                                   than letters, digits and underscores
+	 * @throws IllegalStateException     if the name's ID is already used by a
+	 *                                   different name
+	 */
+	public static long name(String name) {
+		if (!name.matches("^[_0-9a-zA-Z]+$")) {
+			throw new IllegalArgumentException("Invalid key name: "+name);
+		}
+		int h = name.hashCode();
+		int id = (h ^ (h >>> 16)) & 0xFFFF;
+
+		String existing = names.putIfAbsent(id, name);
+		if (existing != null && !existing.equals(name)) {
+			throw new IllegalStateException("Key names "+existing+" and "+name+" have the same ID.");
+		}
+		return (long) id << NAME_SHIFT;
+	}
+
+
+	/**
+	 * Append an index to the given key.
+	 */
+	public static long index(long key, int i) {
+		int depth = depth(key);
+		if (depth == MAX_DEPTH) {
+			throw new IllegalArgumentException("Too many indexes in key "+toString(key)+".");
+		}
+		if (i < 0 || i > MAX_INDEX) {
+			throw new IllegalArgumentException("Key index "+i+" is not between 0 and "+MAX_INDEX+".");
+		}
+		long res = key & ~(3L << DEPTH_SHIFT);
+		res |= (long) (depth+1) << DEPTH_SHIFT;
+		res |= (long) i << indexShift(depth);
+		return res;
+	}
+
+	/**
+	 * Append two indexes to the given key.
+	 */
+	public static long index(long key, int i, int j) {
+		return index(index(key, i), j);
+	}
+
+	/**
+	 * Append three indexes to the given key.
+	 */
+	public static long index(long key, int i, int j, int k) {
+		return index(index(index(key, i), j), k);
+	}
+
+
+	/**
+	 * Return the number of indexes in the given key.
+	 */
+	public static int depth(long key) {
+		return (int) (key >>> DEPTH_SHIFT) & 3;
+	}
+
+
+	/**
+	 * Return the specified index of the given key.
+	 */
+	public static int getIndex(long key, int n) {
+		if (n < 0 || n >= depth(key)) {
+			throw new IllegalArgumentException("Key "+toString(key)+" has no index "+n+".");
+		}
+		return (int) (key >>> indexShift(n)) & MAX_INDEX;
+	}
+
+
+	/**
+	 * Return the key consisting of the name and the first depth indexes of the
+	 * given key.
+	 */
+	public static long prefix(long key, int depth) {
+		if (depth < 0 || depth > depth(key)) {
+			throw new IllegalArgumentException("Key "+toString(key)+" has no prefix of depth "+depth+".");
+		}
+		long res = key & (0xFFFFL << NAME_SHIFT);
+		res |= (long) depth << DEPTH_SHIFT;
+		for (int n = 0; n < depth; ++n) {
+			res |= (long) getIndex(key, n) << indexShift(n);
+		}
+		return res;
+	}
+
+
+	private static int indexShift(int n) {
+		return 31 - 15*n;
+	}
+
+
+	/**
+	 * Convert a key written as name[i][j][k] to its packed form.
+	 *
+	 * @throws IllegalArgumentException  if the key is not well-formed
+	 */
+	public static long parse(String key) {
+		int bracket = key.indexOf('[');
+		long res = name(bracket == -1 ? key : key.substring(0, bracket));
+		while (bracket != -1) {
+			int end = key.indexOf(']', bracket);
+			if (end == -1) {
+				throw new IllegalArgumentException("Invalid key: "+key);
+			}
+			int i;
+			try {
+				i = Integer.parseInt(key.substring(bracket+1, end));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid key: "+key);
+			}
+			res = index(res, i);
+
+			bracket = end+1 < key.length() ? end+1 : -1;
+			if (bracket != -1 && key.charAt(bracket) != '[') {
+				throw new IllegalArgumentException("Invalid key: "+key);
+			}
+		}
+		return res;
+	}
+
+
+	/**
+	 * Convert a packed key to the name[i][j][k] form (used for logging).
+	 */
+	public static String toString(long key) {
+		int id = (int) (key >>> NAME_SHIFT);
+		String name = names.get(id);
+		StringBuilder res = new StringBuilder(name != null ? name : "#"+id);
+		for (int i = 0; i < depth(key); ++i) {
+			res.append('[').append(getIndex(key, i)).append(']');
+		}
+		return res.toString();
+	}
+
+}
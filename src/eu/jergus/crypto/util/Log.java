@@ -43,7 +43,7 @@ public class Log {
 
 
 	private static boolean color = true;
-	private static int level = 0;
+	private static volatile int level = 0;
 
 	/**
 	 * Enable or disable color output for Linux consoles.
@@ -64,6 +64,15 @@ public class Log {
 	}
 
 
+	/**
+	 * Determine if messages of the specified type are output. This can be
+	 * used to avoid building messages that would be discarded.
+	 */
+	public static boolean isEnabled(int type) {
+		return type < level;
+	}
+
+
 	/**
 	 * Output the specified message, labelled and optionally colored according
 	 * to the given message type.
@@ -0,0 +1,159 @@
+package eu.jergus.crypto.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import eu.jergus.crypto.util.stream.Pipe;
+
+
+/**
+ * Connects participants running in the same process through in-memory
+ * pipes, without any sockets.
+ * <p>
+ * For every ordered pair of participants, and every partial stream, one
+ * {@link Pipe} is created (its buffer is only allocated once it is written
+ * to). The streams of each participant are available
+ * through a ConnectionManager (see {@link #getConnectionManager}), so the
+ * same code can run over TCP and in memory. This is useful for measuring the
+ * computation cost of protocols, and for tests with many participants.
+ */
+public class LoopbackNetwork {
+
+	/**
+	 * Default capacity of the pipes. Kept small, since there are
+	 * n(n-1) of them for each partial stream.
+	 */
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+
+	/**
+	 * ConnectionManager whose streams are ends of the network's pipes.
+	 */
+	private class LoopbackConnectionManager extends ConnectionManager {
+		private final int localId;
+
+		private LoopbackConnectionManager(int localId) {
+			super(LoopbackNetwork.this.n, multiplex);
+			this.localId = localId;
+
+			for (int i = 0; i < n; ++i) {
+				if (i != localId) {
+					for (int j = 0; j < multiplex; ++j) {
+						inputStreams[i][j] = pipes[i][localId][j].getInputStream();
+						outputStreams[i][j] = pipes[localId][i][j].getOutputStream();
+					}
+				}
+			}
+		}
+
+		/**
+		 * Close the streams of the local participant.
+		 */
+		public void close() {
+			for (int i = 0; i < n; ++i) {
+				if (i != localId) {
+					for (int j = 0; j < multiplex; ++j) {
+						try {
+							inputStreams[i][j].close();
+							outputStreams[i][j].close();
+						} catch (IOException e) {}
+					}
+				}
+			}
+		}
+	}
+
+
+	private final int n;
+	private final int multiplex;
+
+	/**
+	 * pipes[i][j][k] carries partial stream k from participant i to j.
+	 */
+	private final Pipe[][][] pipes;
+
+
+	/**
+	 * Create a network of n participants, with one stream per connection.
+	 */
+	public LoopbackNetwork(int n) {
+		this(n, 1, DEFAULT_CAPACITY);
+	}
+
+
+	/**
+	 * Create a network of n participants.
+	 *
+	 * @param n          number of participants
+	 * @param multiplex  number of input/output streams for each connection
+	 * @param capacity   number of bytes buffered by each pipe
+	 */
+	public LoopbackNetwork(int n, int multiplex, int capacity) {
+		if (multiplex < 1 || multiplex > 256) {
+			throw new IllegalArgumentException("Multiplex ratio must be between 1 and 256.");
+		}
+		this.n = n;
+		this.multiplex = multiplex;
+
+		pipes = new Pipe[n][n][multiplex];
+		for (int i = 0; i < n; ++i) {
+			for (int j = 0; j < n; ++j) {
+				if (i != j) {
+					for (int k = 0; k < multiplex; ++k) {
+						pipes[i][j][k] = new Pipe(capacity);
+					}
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Return a ConnectionManager providing the streams of the specified
+	 * participant.
+	 */
+	public ConnectionManager getConnectionManager(int localId) {
+		if (localId < 0 || localId >= n) {
+			throw new IllegalArgumentException("localId must be between 0 and n-1.");
+		}
+		return new LoopbackConnectionManager(localId);
+	}
+
+
+	/**
+	 * Return the input streams of the specified participant from all the
+	 * others (the local participant's entry is null).
+	 *
+	 * @param localId   ID of the participant
+	 * @param streamId  ID of the partial stream
+	 */
+	public InputStream[] getInputStreams(int localId, int streamId) {
+		InputStream[] res = new InputStream[n];
+		for (int i = 0; i < n; ++i) {
+			if (i != localId) {
+				res[i] = pipes[i][localId][streamId].getInputStream();
+			}
+		}
+		return res;
+	}
+
+
+	/**
+	 * Return the output streams of the specified participant to all the
+	 * others (the local participant's entry is null).
+	 *
+	 * @param localId   ID of the participant
+	 * @param streamId  ID of the partial stream
+	 */
+	public OutputStream[] getOutputStreams(int localId, int streamId) {
+		OutputStream[] res = new OutputStream[n];
+		for (int i = 0; i < n; ++i) {
+			if (i != localId) {
+				res[i] = pipes[localId][i][streamId].getOutputStream();
+			}
+		}
+		return res;
+	}
+
+}
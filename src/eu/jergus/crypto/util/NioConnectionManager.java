@@ -0,0 +1,515 @@
+package eu.jergus.crypto.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import eu.jergus.crypto.util.stream.RingBufferInputStream;
+
+
+/**
+ * Variant of {@link ConnectionManager} that serves all connections using
+ * non-blocking socket channels.
+ * <p>
+ * The connections are established in the same way, but all reading and
+ * writing is done by a small number of event-loop threads (one by default),
+ * instead of a thread for each connection and partial stream. The data sent
+ * over the connections has the same format (partial streams are combined as
+ * by {@link stream.OutputStreamMultiplexer}), so the two kinds of connection
+ * managers can be used together.
+ * <p>
+ * The partial input streams are {@link RingBufferInputStream}s: when a
+ * reader falls behind and its buffer fills up, the connection stops being
+ * read until space is available.
+ */
+public class NioConnectionManager extends ConnectionManager {
+
+	/**
+	 * Maximum length of one chunk of a partial stream.
+	 */
+	private static final int MAX_CHUNK = 65535;
+
+	/**
+	 * Capacity of the partial input streams. Their buffers are only
+	 * allocated once data arrives, but there can be many of them.
+	 */
+	private static final int INPUT_CAPACITY = 1 << 16;
+
+	/**
+	 * Number of queued output bytes of one connection at which the writing
+	 * threads are blocked until the data is sent.
+	 */
+	private static final int MAX_PENDING_OUTPUT = 1 << 22;
+
+
+	/**
+	 * A thread serving a set of connections.
+	 */
+	private static class EventLoop extends Thread {
+		private final Selector selector;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private volatile boolean closed = false;
+
+		private EventLoop() throws IOException {
+			selector = Selector.open();
+			setDaemon(true);
+		}
+
+		/**
+		 * Run the given task in the event-loop thread.
+		 */
+		private void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		public void run() {
+			try {
+				while (!closed) {
+					selector.select();
+
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						task.run();
+					}
+
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						Connection c = (Connection) key.attachment();
+						if (key.isValid() && key.isReadable()) {
+							c.readable();
+						}
+						if (key.isValid() && key.isWritable()) {
+							c.writable();
+						}
+					}
+				}
+			} catch (IOException e) {
+				Log.log(Log.WARN, "Event loop failed: "+e.getMessage());
+			} catch (ClosedSelectorException e) {
+			}
+		}
+
+		private void close() {
+			closed = true;
+			try {
+				selector.close();
+			} catch (IOException e) {}
+		}
+	}
+
+
+	/**
+	 * State of the connection to one participant.
+	 */
+	private class Connection {
+		private final int id;
+		private final SocketChannel channel;
+		private final EventLoop loop;
+		private SelectionKey key;
+
+		private final int multiplex;
+
+		private final RingBufferInputStream[] inputs;
+		private final OutputStream[] outputs;
+
+		/**
+		 * Received data that was not delivered to the partial streams yet.
+		 */
+		private final ByteBuffer in = ByteBuffer.allocateDirect(MAX_CHUNK + 3);
+
+		/**
+		 * The partial stream receiving the current chunk, and the number of
+		 * its bytes that were not received yet (multiplexed connections only).
+		 */
+		private int chunkStream;
+		private int chunkRemaining = 0;
+
+		/**
+		 * Set while reading is suspended because a partial stream is full.
+		 */
+		private boolean suspended = false;
+
+		/**
+		 * Chunks waiting to be sent (with their headers), and the number of
+		 * their bytes.
+		 */
+		private final Queue<byte[]> output = new ConcurrentLinkedQueue<byte[]>();
+		private long pendingOutput = 0;
+
+		/**
+		 * The chunk being copied into the output buffer, and the position in it.
+		 */
+		private byte[] current;
+		private int currentPos;
+
+		private final ByteBuffer out = ByteBuffer.allocateDirect(MAX_CHUNK + 3);
+
+		/**
+		 * Set while the event loop is (or is about to be) writing.
+		 */
+		private final AtomicBoolean writing = new AtomicBoolean(false);
+
+		/**
+		 * An exception that closed this connection. Rethrown by the write
+		 * calls.
+		 */
+		private volatile IOException exception;
+
+
+		private Connection(int id, SocketChannel channel, int multiplex, EventLoop loop) throws IOException {
+			this.id = id;
+			this.channel = channel;
+			this.loop = loop;
+			this.multiplex = multiplex;
+
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+
+			inputs = new RingBufferInputStream[multiplex];
+			outputs = new OutputStream[multiplex];
+			for (int i = 0; i < multiplex; ++i) {
+				inputs[i] = new RingBufferInputStream(INPUT_CAPACITY);
+				inputs[i].setSpaceListener(new Runnable() {
+					public void run() {
+						Connection.this.loop.execute(new Runnable() {
+							public void run() {
+								resume();
+							}
+						});
+					}
+				});
+				outputs[i] = new ChannelOutputStream(this, i);
+			}
+
+			loop.execute(new Runnable() {
+				public void run() {
+					try {
+						key = Connection.this.channel.register(Connection.this.loop.selector, SelectionKey.OP_READ, Connection.this);
+					} catch (IOException e) {
+						fail(e);
+					}
+				}
+			});
+		}
+
+
+		/**
+		 * Read the available data and deliver it to the partial streams.
+		 */
+		private void readable() {
+			try {
+				if (channel.read(in) == -1) {
+					for (RingBufferInputStream s : inputs) {
+						s.setEnd();
+					}
+					key.cancel();
+					return;
+				}
+				in.flip();
+				deliver();
+				in.compact();
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+
+		/**
+		 * Deliver the received data to the partial streams, suspending reading
+		 * if some stream is full (the input buffer must be flipped).
+		 */
+		private void deliver() throws IOException {
+			while (in.hasRemaining()) {
+				if (multiplex == 1) {
+					chunkStream = 0;
+					chunkRemaining = in.remaining();
+				} else if (chunkRemaining == 0) {
+					if (in.remaining() < 3) break;
+					chunkStream = in.get() & 255;
+					chunkRemaining = ((in.get() & 255) << 8) + (in.get() & 255);
+					if (chunkStream >= multiplex) {
+						throw new IOException("Unexpected partial stream "+chunkStream+" from #"+id+".");
+					}
+					continue;
+				}
+
+				int limit = in.limit();
+				in.limit(in.position() + Math.min(chunkRemaining, in.remaining()));
+				chunkRemaining -= inputs[chunkStream].offer(in);
+				boolean full = in.hasRemaining();
+				in.limit(limit);
+
+				if (full) {
+					suspended = true;
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+					break;
+				}
+			}
+		}
+
+
+		/**
+		 * Continue delivering data after space was made in a full stream.
+		 */
+		private void resume() {
+			if (!suspended || !key.isValid()) return;
+			suspended = false;
+			try {
+				in.flip();
+				deliver();
+				in.compact();
+				if (!suspended) {
+					key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+				}
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+
+		/**
+		 * Queue a chunk to be sent by the event loop.
+		 */
+		private void send(byte[] chunk) throws IOException {
+			synchronized (output) {
+				while (pendingOutput > MAX_PENDING_OUTPUT && exception == null) {
+					try {
+						output.wait();
+					} catch (InterruptedException e) {
+					}
+				}
+				if (exception != null) throw exception;
+				pendingOutput += chunk.length;
+			}
+			output.add(chunk);
+			if (writing.compareAndSet(false, true)) {
+				loop.execute(new Runnable() {
+					public void run() {
+						writable();
+					}
+				});
+			}
+		}
+
+
+		/**
+		 * Send as much of the queued data as the channel accepts, coalescing
+		 * the chunks in the output buffer.
+		 */
+		private void writable() {
+			if (key == null || !key.isValid()) return;
+			try {
+				long sent = 0;
+				while (true) {
+					// fill the buffer
+					while (out.hasRemaining()) {
+						if (current == null) {
+							current = output.poll();
+							currentPos = 0;
+							if (current == null) break;
+						}
+						int len = Math.min(out.remaining(), current.length - currentPos);
+						out.put(current, currentPos, len);
+						currentPos += len;
+						if (currentPos == current.length) {
+							current = null;
+						}
+					}
+
+					out.flip();
+					int written = channel.write(out);
+					sent += written;
+					boolean drained = !out.hasRemaining();
+					out.compact();
+
+					if (!drained) {
+						// the socket buffer is full, continue when writable
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+						break;
+					}
+					if (current == null && output.isEmpty()) {
+						key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+						writing.set(false);
+						if (output.isEmpty() || !writing.compareAndSet(false, true)) {
+							break;
+						}
+					}
+				}
+
+				synchronized (output) {
+					pendingOutput -= sent;
+					output.notifyAll();
+				}
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+
+		private void fail(IOException e) {
+			exception = e;
+			for (RingBufferInputStream s : inputs) {
+				s.setException(e);
+			}
+			synchronized (output) {
+				output.notifyAll();
+			}
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				channel.close();
+			} catch (IOException ce) {}
+		}
+	}
+
+
+	/**
+	 * One partial output stream of a connection.
+	 */
+	private static class ChannelOutputStream extends OutputStream {
+		private final Connection connection;
+		private final int id;
+
+		private ChannelOutputStream(Connection connection, int id) {
+			this.connection = connection;
+			this.id = id;
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (connection.multiplex == 1) {
+				byte[] chunk = new byte[len];
+				System.arraycopy(b, off, chunk, 0, len);
+				connection.send(chunk);
+				return;
+			}
+			for (int cur = off; cur < off+len; cur += MAX_CHUNK) {
+				int curLen = Math.min(MAX_CHUNK, off+len-cur);
+				byte[] chunk = new byte[curLen+3];
+				chunk[0] = (byte) id;
+				chunk[1] = (byte) (curLen >> 8);
+				chunk[2] = (byte) curLen;
+				System.arraycopy(b, cur, chunk, 3, curLen);
+				connection.send(chunk);
+			}
+		}
+	}
+
+
+	private final EventLoop[] loops;
+	private final Connection[] connections;
+
+
+	/**
+	 * Initialize connections to the specified addresses, served by one
+	 * event-loop thread.
+	 *
+	 * @see ConnectionManager#ConnectionManager(int, String[])
+	 */
+	public NioConnectionManager(int localId, String[] addresses) throws IOException {
+		this(localId, addresses, 1, 1);
+	}
+
+
+	/**
+	 * Initialize connections to the specified addresses and provide the
+	 * specified number of input/output streams for each connection.
+	 *
+	 * @param localId       ID of the local participant (whose address is ignored)
+	 * @param addresses     array of participants' addressess (in address:port format)
+	 * @param multiplex     number of input/output streams required for each connection
+	 * @param threads       number of event-loop threads
+	 * @throws IOException  any exception thrown while connecting
+	 */
+	public NioConnectionManager(int localId, String[] addresses, int multiplex, int threads) throws IOException {
+		this(localId, addresses, multiplex, threads, 0);
+	}
+
+
+	/**
+	 * Initialize connections to the specified addresses within the specified
+	 * time, and provide the specified number of input/output streams for
+	 * each connection.
+	 *
+	 * @param localId       ID of the local participant (whose address is ignored)
+	 * @param addresses     array of participants' addressess (in address:port format)
+	 * @param multiplex     number of input/output streams required for each connection
+	 * @param threads       number of event-loop threads
+	 * @param timeout       time limit for establishing all connections in
+	 *                      milliseconds, or 0 for no limit
+	 * @throws IOException  any exception thrown while connecting
+	 */
+	public NioConnectionManager(int localId, String[] addresses, int multiplex, int threads, int timeout) throws IOException {
+		super(addresses.length, multiplex);
+
+		if (localId < 0 || localId >= n) {
+			throw new IllegalArgumentException("localId must be between 0 and addresses.length-1.");
+		}
+		if (multiplex < 1 || multiplex > 256) {
+			throw new IllegalArgumentException("Multiplex ratio must be between 1 and 256.");
+		}
+		if (threads < 1) {
+			throw new IllegalArgumentException("At least one event-loop thread is required.");
+		}
+
+		connect(localId, addresses, true, timeout);
+
+		loops = new EventLoop[threads];
+		for (int i = 0; i < threads; ++i) {
+			loops[i] = new EventLoop();
+			loops[i].start();
+		}
+
+		connections = new Connection[n];
+		for (int i = 0, cur = 0; i < n; ++i) {
+			if (i != localId) {
+				connections[i] = new Connection(i, sockets[i].getChannel(), multiplex, loops[cur++ % threads]);
+				for (int j = 0; j < multiplex; ++j) {
+					inputStreams[i][j] = connections[i].inputs[j];
+					outputStreams[i][j] = connections[i].outputs[j];
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Close all connections and stop the event-loop threads.
+	 * <p>
+	 * Data that was not sent yet is discarded.
+	 */
+	public void close() {
+		for (EventLoop loop : loops) {
+			loop.close();
+		}
+		for (Connection c : connections) {
+			if (c != null) {
+				c.fail(new IOException("Connection closed."));
+			}
+		}
+		for (Socket s : sockets) {
+			if (s != null) {
+				try {
+					s.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,612 @@
+package eu.jergus.crypto.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+
+import eu.jergus.crypto.util.stream.RingBufferInputStream;
+
+
+/**
+ * Runs many logical sessions over the connections of one ConnectionManager,
+ * so that protocols can be started and finished without reconnecting.
+ * <p>
+ * Each session is identified by an int ID, which must be the same for all
+ * participants, and provides its own partial streams (up to 65535 for each
+ * connection) through a ConnectionManager returned by {@link #openSession}.
+ * <p>
+ * All sessions share one partial stream of each connection. The data is sent
+ * in chunks with the following header: session ID (4 bytes), partial stream
+ * ID (2 bytes) and length (2 bytes). A chunk with the stream ID 0xffff marks
+ * the end of the session's data from its sender.
+ * <p>
+ * The chunks for one participant are sent by a background thread, which
+ * takes turns between the partial streams with data to send, so a session
+ * sending a lot of data does not hold back the others.
+ * <p>
+ * Received data is buffered in the input streams of its session, whose
+ * buffers grow as needed, so a session that does not read its input (or
+ * was not opened yet) never holds back the others. Sessions should be closed
+ * when they are no longer used, which discards any further data.
+ * <p>
+ * The buffers are limited: if the data from one participant does not fit in
+ * {@link #MAX_SESSION_BUFFER} bytes of a session's buffers, the session
+ * fails (its input streams throw an exception and further data is
+ * discarded), and if one participant sends data for more than
+ * {@link #MAX_PENDING_SESSIONS} sessions that are not opened yet, the
+ * connection to it fails.
+ */
+public class SessionManager {
+
+	/**
+	 * Default initial size of the buffer of each partial input stream of a
+	 * session.
+	 */
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	/**
+	 * Maximum size the buffers of one session can grow to with the data
+	 * from one participant. The initial buffers of the streams created when
+	 * opening the session are not included.
+	 */
+	public static final int MAX_SESSION_BUFFER = 1 << 22;
+
+	/**
+	 * Maximum number of sessions that one participant can send data for
+	 * before they are opened.
+	 */
+	public static final int MAX_PENDING_SESSIONS = 256;
+
+	/**
+	 * Maximum length of one sent chunk, and the size of the buffer of each
+	 * partial output stream. This is how much a session can send before the
+	 * other sessions get their turn.
+	 */
+	private static final int MAX_CHUNK = 16384;
+
+	/**
+	 * Stream ID of the chunk marking the end of a session.
+	 */
+	private static final int END = 0xffff;
+
+
+	/**
+	 * Received data of one session, and its state.
+	 */
+	private class Incoming {
+		private final int id;
+
+		/**
+		 * Partial input streams from each participant, by stream ID.
+		 */
+		private final Map<Integer, RingBufferInputStream>[] streams;
+
+		/**
+		 * True for each participant that ended its data.
+		 */
+		private final boolean[] ended = new boolean[n];
+		private int endedCount = 0;
+
+		/**
+		 * Participant whose data created this session before it was opened,
+		 * or -1.
+		 */
+		private int creator = -1;
+
+		/**
+		 * Size of the buffers holding the data from each participant,
+		 * counted against {@link #MAX_SESSION_BUFFER}.
+		 */
+		private final int[] buffered = new int[n];
+
+		/**
+		 * Set when the session failed because of too much buffered data.
+		 */
+		private IOException failure;
+
+		private boolean opened = false;
+		private boolean closed = false;
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		private Incoming(int id) {
+			this.id = id;
+			streams = new Map[n];
+			for (int i = 0; i < n; ++i) {
+				streams[i] = new HashMap<Integer, RingBufferInputStream>();
+			}
+		}
+
+		/**
+		 * Return the specified input stream, creating it if needed (must hold
+		 * the SessionManager's lock).
+		 */
+		private RingBufferInputStream get(int from, int streamId) {
+			RingBufferInputStream res = streams[from].get(streamId);
+			if (res == null) {
+				res = new RingBufferInputStream(capacity);
+				if (ended[from]) {
+					res.setEnd();
+				}
+				if (exceptions[from] != null) {
+					res.setException(exceptions[from]);
+				}
+				if (failure != null) {
+					res.setException(failure);
+				}
+				streams[from].put(streamId, res);
+			}
+			return res;
+		}
+
+		/**
+		 * Fail the session: its input streams throw the given exception and
+		 * any further data is discarded (must hold the SessionManager's
+		 * lock).
+		 */
+		private void fail(IOException e) {
+			failure = e;
+			for (Map<Integer, RingBufferInputStream> m : streams) {
+				for (RingBufferInputStream s : m.values()) {
+					s.setException(e);
+				}
+			}
+		}
+
+		/**
+		 * Remove this session once it is closed on all sides (must hold the
+		 * SessionManager's lock).
+		 */
+		private void release() {
+			if (closed && endedCount == remoteCount) {
+				sessions.remove(id);
+			}
+		}
+	}
+
+
+	/**
+	 * The ConnectionManager of one session.
+	 */
+	private class Session extends ConnectionManager {
+		private final Incoming incoming;
+
+		private Session(Incoming incoming, int multiplex) {
+			super(SessionManager.this.n, multiplex);
+			this.incoming = incoming;
+
+			for (int i = 0; i < n; ++i) {
+				if (i != localId) {
+					for (int j = 0; j < multiplex; ++j) {
+						inputStreams[i][j] = incoming.get(i, j);
+						outputStreams[i][j] = new SessionOutputStream(senders[i], incoming.id, j);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Close the session: signal the end of data to the other
+		 * participants and discard any further received data.
+		 */
+		public void close() {
+			synchronized (SessionManager.this) {
+				if (incoming.closed) return;
+				incoming.closed = true;
+				for (Map<Integer, RingBufferInputStream> m : incoming.streams) {
+					for (RingBufferInputStream s : m.values()) {
+						s.close();
+					}
+				}
+				incoming.release();
+			}
+			for (int i = 0; i < n; ++i) {
+				if (i != localId) {
+					senders[i].end(incoming.id, outputStreams[i]);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * One partial output stream of a session.
+	 */
+	private class SessionOutputStream extends OutputStream {
+		private final Sender sender;
+		private final int sessionId;
+		private final int streamId;
+
+		/**
+		 * Data written to this stream that was not sent yet.
+		 */
+		private byte[] buffer;
+		private int count = 0;
+
+		/**
+		 * True if this stream is in the sender's queue.
+		 */
+		private boolean queued = false;
+
+		private boolean closed = false;
+
+		private SessionOutputStream(Sender sender, int sessionId, int streamId) {
+			this.sender = sender;
+			this.sessionId = sessionId;
+			this.streamId = streamId;
+		}
+
+		public void write(int b) throws IOException {
+			sender.write(this, new byte[] {(byte) b}, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			sender.write(this, b, off, len);
+		}
+	}
+
+
+	/**
+	 * Sends the chunks of all sessions to one participant. The partial
+	 * streams with data to send are queued, and each of them sends at most
+	 * one chunk before the next one gets its turn. The target stream is
+	 * flushed whenever there is no more data to send.
+	 */
+	private class Sender extends Thread {
+		private final DataOutputStream target;
+
+		private final Queue<SessionOutputStream> queue = new ArrayDeque<SessionOutputStream>();
+
+		private boolean closed = false;
+
+		/**
+		 * An exception thrown by the target stream. Rethrown by the next
+		 * attempt to write to any of the streams.
+		 */
+		private IOException exception;
+
+		private Sender(OutputStream target) {
+			this.target = new DataOutputStream(new BufferedOutputStream(target, MAX_CHUNK + 8));
+			setDaemon(true);
+		}
+
+		public void run() {
+			byte[] chunk = new byte[MAX_CHUNK];
+			boolean unflushed = false;
+			try {
+				while (true) {
+					SessionOutputStream s;
+					int len = 0;
+					synchronized (this) {
+						while (queue.isEmpty() && !closed && !unflushed) {
+							try {
+								wait();
+							} catch (InterruptedException e) {}
+						}
+						s = queue.poll();
+						if (s != null) {
+							len = s.count;
+							if (len > 0) {
+								System.arraycopy(s.buffer, 0, chunk, 0, len);
+							}
+							s.count = 0;
+							s.queued = false;
+							notifyAll();
+						}
+					}
+
+					if (s != null) {
+						target.writeInt(s.sessionId);
+						target.writeShort(s.streamId);
+						target.writeShort(len);
+						target.write(chunk, 0, len);
+						unflushed = true;
+					} else if (unflushed) {
+						// nothing more to send for now
+						target.flush();
+						unflushed = false;
+					} else {
+						break;
+					}
+				}
+			} catch (IOException e) {
+				synchronized (this) {
+					exception = e;
+					notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Add data to the buffer of a stream, waiting while the buffer is full.
+		 */
+		synchronized private void write(SessionOutputStream s, byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (exception != null) throw exception;
+				if (closed || s.closed) throw new IOException("Stream closed.");
+
+				if (s.buffer == null) {
+					s.buffer = new byte[MAX_CHUNK];
+				}
+				int cur = Math.min(len, MAX_CHUNK - s.count);
+				if (cur == 0) {
+					try {
+						wait();
+					} catch (InterruptedException e) {}
+					continue;
+				}
+				System.arraycopy(b, off, s.buffer, s.count, cur);
+				s.count += cur;
+				off += cur;
+				len -= cur;
+
+				if (!s.queued) {
+					s.queued = true;
+					queue.add(s);
+					notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Close the given streams of a session and send its end marker once
+		 * their data is sent.
+		 */
+		synchronized private void end(int sessionId, OutputStream[] streams) {
+			for (OutputStream o : streams) {
+				SessionOutputStream s = (SessionOutputStream) o;
+				while (s.queued && exception == null) {
+					try {
+						wait();
+					} catch (InterruptedException e) {}
+				}
+				s.closed = true;
+				s.buffer = null;
+			}
+			if (exception == null && !closed) {
+				queue.add(new SessionOutputStream(this, sessionId, END));
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Stop once all queued data is sent.
+		 */
+		synchronized private void shutdown() {
+			closed = true;
+			notifyAll();
+		}
+	}
+
+
+	private final ConnectionManager cm;
+
+	private final int n;
+	private final int localId;
+	private final int remoteCount;
+	private final int capacity;
+
+	private final Sender[] senders;
+
+	private final Map<Integer, Incoming> sessions = new HashMap<Integer, Incoming>();
+
+	/**
+	 * Number of sessions created by the data from each participant that
+	 * are not opened yet.
+	 */
+	private final int[] pendingSessions;
+
+	/**
+	 * Exceptions thrown while reading from each connection. Passed on to the
+	 * input streams created afterwards.
+	 */
+	private final IOException[] exceptions;
+
+
+	/**
+	 * Run sessions over the first partial stream of the given
+	 * ConnectionManager's connections.
+	 */
+	public SessionManager(ConnectionManager cm) {
+		this(cm, 0, DEFAULT_CAPACITY);
+	}
+
+
+	/**
+	 * Run sessions over the specified partial stream of the given
+	 * ConnectionManager's connections.
+	 * <p>
+	 * This launches two background threads for each connection, which send
+	 * and receive the data of all sessions.
+	 *
+	 * @param cm        ConnectionManager with established connections
+	 * @param streamId  ID of the partial stream to use
+	 * @param capacity  initial size of the buffer of each partial input stream
+	 *                  of a session
+	 */
+	public SessionManager(ConnectionManager cm, int streamId, int capacity) {
+		this.cm = cm;
+		this.n = cm.n;
+		this.capacity = capacity;
+
+		int local = -1;
+		for (int i = 0; i < n; ++i) {
+			if (cm.getOutputStream(i, streamId) == null) {
+				local = i;
+			}
+		}
+		localId = local;
+		remoteCount = local == -1 ? n : n-1;
+
+		senders = new Sender[n];
+		exceptions = new IOException[n];
+		pendingSessions = new int[n];
+		for (int i = 0; i < n; ++i) {
+			if (i != localId) {
+				senders[i] = new Sender(cm.getOutputStream(i, streamId));
+				senders[i].start();
+				startReader(i, cm.getInputStream(i, streamId));
+			}
+		}
+	}
+
+
+	/**
+	 * Open a session with the specified ID.
+	 * <p>
+	 * The session must be opened by all participants with the same ID and
+	 * number of partial streams. Closing the returned ConnectionManager only
+	 * closes the session, and the ID can be used again once all participants
+	 * have closed it.
+	 *
+	 * @param sessionId  ID of the session
+	 * @param multiplex  number of input/output streams required for each
+	 *                   connection (1 to 65535)
+	 * @return           ConnectionManager providing the session's streams
+	 */
+	synchronized public ConnectionManager openSession(int sessionId, int multiplex) {
+		if (multiplex < 1 || multiplex > END) {
+			throw new IllegalArgumentException("Multiplex ratio must be between 1 and 65535.");
+		}
+
+		Incoming incoming = sessions.get(sessionId);
+		if (incoming == null) {
+			incoming = new Incoming(sessionId);
+			sessions.put(sessionId, incoming);
+		} else if (incoming.opened) {
+			throw new IllegalStateException("Session "+sessionId+" is already open.");
+		} else if (incoming.creator != -1) {
+			--pendingSessions[incoming.creator];
+		}
+		incoming.opened = true;
+
+		return new Session(incoming, multiplex);
+	}
+
+
+	/**
+	 * Send the remaining data and close the underlying ConnectionManager.
+	 */
+	public void close() {
+		for (Sender sender : senders) {
+			if (sender != null) {
+				sender.shutdown();
+				while (true) {
+					try {
+						sender.join();
+						break;
+					} catch (InterruptedException e) {
+					}
+				}
+			}
+		}
+		cm.close();
+	}
+
+
+	/**
+	 * Start the thread reading the chunks from the specified participant.
+	 */
+	private void startReader(final int from, InputStream src) {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(src, 0xffff + 8));
+
+		Thread t = new Thread() {
+			public void run() {
+				byte[] buf = new byte[0xffff];
+				try {
+					while (true) {
+						int sessionId;
+						try {
+							sessionId = in.readInt();
+						} catch (EOFException e) {
+							finish(from, null);
+							return;
+						}
+						int streamId = in.readUnsignedShort();
+						int len = in.readUnsignedShort();
+						in.readFully(buf, 0, len);
+
+						Incoming incoming;
+						RingBufferInputStream s = null;
+						int maxGrowth = 0;
+						synchronized (SessionManager.this) {
+							incoming = sessions.get(sessionId);
+							if (incoming == null) {
+								if (pendingSessions[from] == MAX_PENDING_SESSIONS) {
+									throw new IOException("Participant "+from+" sent data for too many sessions that are not open.");
+								}
+								incoming = new Incoming(sessionId);
+								incoming.creator = from;
+								++pendingSessions[from];
+								sessions.put(sessionId, incoming);
+							}
+
+							if (streamId == END) {
+								if (!incoming.ended[from]) {
+									incoming.ended[from] = true;
+									++incoming.endedCount;
+									for (RingBufferInputStream r : incoming.streams[from].values()) {
+										r.setEnd();
+									}
+									incoming.release();
+								}
+							} else if (!incoming.closed && incoming.failure == null) {
+								s = incoming.streams[from].get(streamId);
+								if (s == null) {
+									s = incoming.get(from, streamId);
+									incoming.buffered[from] += capacity;
+								}
+								maxGrowth = MAX_SESSION_BUFFER - incoming.buffered[from];
+							}
+						}
+
+						if (s != null) {
+							// only this thread adds to the buffers of the
+							// data from this participant
+							int grown = s.append(buf, 0, len, maxGrowth);
+							if (grown != 0) {
+								synchronized (SessionManager.this) {
+									if (grown > 0) {
+										incoming.buffered[from] += grown;
+									} else if (incoming.failure == null) {
+										incoming.fail(new IOException("Session "+sessionId+" buffered too much data from participant "+from+"."));
+									}
+								}
+							}
+						}
+					}
+				} catch (IOException e) {
+					finish(from, e);
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+
+	/**
+	 * Pass the end of the connection from the specified participant to all
+	 * sessions.
+	 */
+	synchronized private void finish(int from, IOException e) {
+		if (e == null) {
+			e = new EOFException("Connection to participant "+from+" ended.");
+		}
+		exceptions[from] = e;
+		for (Incoming incoming : sessions.values()) {
+			for (RingBufferInputStream s : incoming.streams[from].values()) {
+				s.setException(e);
+			}
+		}
+	}
+
+}
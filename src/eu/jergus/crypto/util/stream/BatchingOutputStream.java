@@ -0,0 +1,226 @@
+package eu.jergus.crypto.util.stream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A buffered output stream that groups written data into batches, so that
+ * many small messages reach the underlying stream in a few large writes.
+ * <p>
+ * Outside of a batch, it behaves like a BufferedOutputStream. Between
+ * {@link #beginBatch} and the matching {@link #endBatch}, calls to
+ * {@link #flush} are deferred until the batch ends. Batches may be nested,
+ * and may be opened by several threads at once; the data is flushed when the
+ * last of them ends.
+ * <p>
+ * The buffered data is also written out when the buffer fills up, and when
+ * it has been waiting for longer than the given delay (so that a long batch
+ * does not hold back data the other side could already process). The delays
+ * of all instances are timed by one shared thread, but the delayed flushes
+ * run on the given executor, so an underlying stream that blocks does not
+ * hold back the others.
+ */
+public class BatchingOutputStream extends OutputStream {
+
+	/**
+	 * Scheduler timing the delayed flushes of all instances (it only hands
+	 * them over to their executors).
+	 */
+	private static ScheduledExecutorService scheduler;
+
+	private final OutputStream out;
+
+	private final Executor executor;
+
+	private final byte[] buf;
+	private int count = 0;
+
+	private final long maxDelay;
+
+	/**
+	 * Number of batches that have not ended yet.
+	 */
+	private int batches = 0;
+
+	/**
+	 * Delayed flush scheduled for the currently buffered data, and its
+	 * timeout.
+	 */
+	private Runnable pendingFlush;
+	private Future<?> pendingTimeout;
+
+	/**
+	 * An exception thrown by a delayed flush. Rethrown by the next call.
+	 */
+	private IOException exception;
+
+
+	/**
+	 * @param out       the underlying output stream
+	 * @param size      buffer size (data is written out when this is reached)
+	 * @param maxDelay  maximum time (in milliseconds) data is held back within
+	 *                  a batch, or 0 to hold it until the batch ends
+	 * @param executor  executor running the delayed flushes, which may block
+	 *                  on the underlying stream
+	 */
+	public BatchingOutputStream(OutputStream out, int size, long maxDelay, Executor executor) {
+		this.out = out;
+		buf = new byte[size];
+		this.maxDelay = maxDelay;
+		this.executor = executor;
+	}
+
+
+	/**
+	 * Start a batch: defer flushing until the matching {@link #endBatch}.
+	 */
+	synchronized public void beginBatch() {
+		++batches;
+	}
+
+
+	/**
+	 * End a batch, flushing the buffered data if no other batch is open.
+	 */
+	synchronized public void endBatch() throws IOException {
+		if (batches == 0) {
+			throw new IllegalStateException("No batch to end.");
+		}
+		if (--batches == 0) {
+			flushBuffer();
+		}
+	}
+
+
+	/**
+	 * Return true if a write of the given length would only be buffered now:
+	 * a batch is open and the data fits in the remaining space, so neither
+	 * the write nor a subsequent flush touches the underlying stream.
+	 * <p>
+	 * Callers that need the answer to stay valid must hold this object's
+	 * lock until they have written the data.
+	 */
+	synchronized public boolean canBuffer(int len) {
+		return exception == null && batches > 0 && len <= buf.length - count;
+	}
+
+
+	synchronized public void write(int b) throws IOException {
+		check();
+		if (count == buf.length) {
+			flushBuffer();
+		}
+		buf[count++] = (byte) b;
+		scheduleFlush();
+	}
+
+
+	synchronized public void write(byte[] b, int off, int len) throws IOException {
+		check();
+		if (len >= buf.length) {
+			// too large for the buffer, write it directly
+			flushBuffer();
+			out.write(b, off, len);
+			if (batches == 0) {
+				out.flush();
+			}
+			return;
+		}
+		if (len > buf.length - count) {
+			flushBuffer();
+		}
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+		scheduleFlush();
+	}
+
+
+	/**
+	 * Flush the buffered data, unless a batch is open.
+	 */
+	synchronized public void flush() throws IOException {
+		check();
+		if (batches == 0) {
+			flushBuffer();
+		}
+	}
+
+
+	synchronized public void close() throws IOException {
+		flushBuffer();
+		out.close();
+	}
+
+
+	private void check() throws IOException {
+		if (exception != null) throw exception;
+	}
+
+
+	/**
+	 * Write out the buffered data and flush the underlying stream (must hold
+	 * the lock).
+	 */
+	private void flushBuffer() throws IOException {
+		if (pendingFlush != null) {
+			pendingTimeout.cancel(false);
+			pendingFlush = null;
+			pendingTimeout = null;
+		}
+		if (count > 0) {
+			out.write(buf, 0, count);
+			count = 0;
+			out.flush();
+		}
+	}
+
+
+	/**
+	 * Make sure the buffered data is flushed after the maximum delay, if it
+	 * is held back by a batch (must hold the lock).
+	 */
+	private void scheduleFlush() {
+		if (batches == 0 || maxDelay <= 0 || pendingFlush != null) {
+			return;
+		}
+		final Runnable flush = new Runnable() {
+			public void run() {
+				synchronized (BatchingOutputStream.this) {
+					if (pendingFlush != this) return;
+					try {
+						flushBuffer();
+					} catch (IOException e) {
+						exception = e;
+					}
+				}
+			}
+		};
+		pendingFlush = flush;
+		pendingTimeout = scheduler().schedule(new Runnable() {
+			public void run() {
+				executor.execute(flush);
+			}
+		}, maxDelay, TimeUnit.MILLISECONDS);
+	}
+
+
+	synchronized private static ScheduledExecutorService scheduler() {
+		if (scheduler == null) {
+			scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return scheduler;
+	}
+
+}
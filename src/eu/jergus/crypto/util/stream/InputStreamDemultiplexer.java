@@ -1,52 +1,33 @@
 package eu.jergus.crypto.util.stream;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Queue;
 
 /**
  * Splits a stream generated by {@link OutputStreamMultiplexer} into its
  * original parts.
+ * <p>
+ * The data of each partial stream is kept in a {@link RingBufferInputStream}
+ * of a fixed capacity. When the buffer of a partial stream is full, the
+ * demultiplexer waits until its data is read, which also holds back the other
+ * partial streams.
  */
 public class InputStreamDemultiplexer {
 
 	/**
-	 * Represents one of the reconstructed partial streams.
+	 * Default capacity of the partial streams.
 	 */
-	private class DemultiplexedInputStream extends InputStream {
-		private Queue<Byte> buffer = new ArrayDeque<Byte>();
-
-		synchronized public int read() throws IOException {
-			while (buffer.isEmpty()) {
-				if (closed) throw new IOException("Stream is closed.");
-				if (end) return -1;
-				if (exception != null) throw exception;
-				try {
-					wait();
-				} catch (InterruptedException e) {
-				}
-			}
-			return (int) buffer.remove() & 255;
-		}
-
-		/**
-		 * Called by the outer object when new data is received.
-		 */
-		synchronized private void add(byte[] b) {
-			for (byte cur : b) {
-				buffer.add(cur);
-			}
-			notifyAll();
-		}
-	}
+	public static final int DEFAULT_CAPACITY = 1 << 20;
 
 
 	private InputStream source;
 
-	private Map<Integer, DemultiplexedInputStream> streams = new HashMap<Integer, DemultiplexedInputStream>();
+	private final int capacity;
+
+	private Map<Integer, RingBufferInputStream> streams = new HashMap<Integer, RingBufferInputStream>();
 
 	/**
 	 * True when end of the underlining input stream is reached.
@@ -54,16 +35,21 @@ public class InputStreamDemultiplexer {
 	private boolean end = false;
 
 	/**
-	 * True when {@link #close} was caled.
+	 * True when the underlining input stream has thrown an exception. This
+	 * exception will be re-thrown by the read calls of the partial streams.
 	 */
-	private boolean closed = false;
+	private IOException exception = null;
+
 
 	/**
-	 * True when the underlining input stream has thrown an exception. This
-	 * exception will be re-thrown by the next
-	 * {@link DemultiplexedInputStream#read} call.
+	 * Creates a new demultiplexer object backed by the provided stream, with
+	 * partial streams of the default capacity.
+	 *
+	 * @param src  source input stream
 	 */
-	private IOException exception = null;
+	public InputStreamDemultiplexer(InputStream src) {
+		this(src, DEFAULT_CAPACITY);
+	}
 
 
 	/**
@@ -72,19 +58,21 @@ public class InputStreamDemultiplexer {
 	 * This automatically launches a background thread that will process all
 	 * received input.
 	 *
-	 * @param src  source input stream
+	 * @param src       source input stream
+	 * @param capacity  number of bytes buffered for each partial stream
 	 */
-	public InputStreamDemultiplexer(InputStream src) {
-		source = src;
+	public InputStreamDemultiplexer(InputStream src, int capacity) {
+		source = new BufferedInputStream(src, 65538);
+		this.capacity = capacity;
 
 		Thread t = new Thread() {
 			public void run() {
+				byte[] b = new byte[65535];
 				try {
 					while (true) {
 						int id = source.read();
 
 						if (id == -1) {
-							end = true;
 							break;
 						}
 
@@ -95,22 +83,17 @@ public class InputStreamDemultiplexer {
 
 						int len = (lenHi << 8) + lenLo;
 
-						byte[] b = new byte[len];
-
-						if (source.read(b) != len) {
-							throw new IOException("Unexpected end of stream.");
+						for (int read = 0; read < len; ) {
+							int cur = source.read(b, read, len - read);
+							if (cur == -1) throw new IOException("Unexpected end of stream.");
+							read += cur;
 						}
 
-						getInputStream(id).add(b);
+						getStream(id).write(b, 0, len);
 					}
+					finish(null);
 				} catch (IOException e) {
-					exception = e;
-				}
-
-				for (DemultiplexedInputStream s : streams.values()) {
-					synchronized (s) {
-						s.notifyAll();
-					}
+					finish(e);
 				}
 			}
 		};
@@ -119,22 +102,52 @@ public class InputStreamDemultiplexer {
 	}
 
 
+	/**
+	 * Pass the end of the underlining stream (or the exception thrown by it)
+	 * to all partial streams.
+	 */
+	synchronized private void finish(IOException e) {
+		end = true;
+		exception = e;
+		for (RingBufferInputStream s : streams.values()) {
+			passEnd(s);
+		}
+	}
+
+
+	private void passEnd(RingBufferInputStream s) {
+		if (exception != null) {
+			s.setException(exception);
+		} else {
+			s.setEnd();
+		}
+	}
+
+
 	/**
 	 * Returns one of the partial input streams.
 	 *
 	 * @param id  ID of the stream to return (0 to 255)
 	 * @return    the partial input stream
 	 */
-	public DemultiplexedInputStream getInputStream(int id) {
+	public InputStream getInputStream(int id) {
 		if (id < 0 || id >= 256) {
 			throw new IllegalArgumentException("Demultiplexed stream ID must be between 0 and 255.");
 		}
+		return getStream(id);
+	}
 
-		if (!streams.containsKey(id)) {
-			streams.put(id, new DemultiplexedInputStream());
-		}
 
-		return streams.get(id);
+	synchronized private RingBufferInputStream getStream(int id) {
+		RingBufferInputStream s = streams.get(id);
+		if (s == null) {
+			s = new RingBufferInputStream(capacity);
+			if (end) {
+				passEnd(s);
+			}
+			streams.put(id, s);
+		}
+		return s;
 	}
 
 
@@ -145,10 +158,14 @@ public class InputStreamDemultiplexer {
 	 * throw an exception.
 	 */
 	public void close() {
-		closed = true;
+		synchronized (this) {
+			for (RingBufferInputStream s : streams.values()) {
+				s.close();
+			}
+		}
 		try {
 			source.close();
 		} catch (IOException e) {}
 	}
 
-}
\ No newline at end of file
+}
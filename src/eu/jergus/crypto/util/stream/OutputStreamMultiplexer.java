@@ -1,41 +1,67 @@
 package eu.jergus.crypto.util.stream;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Queue;
 
 /**
  * Combines two or more output streams into a single target output stream.
+ * <p>
+ * Data written to a partial stream is collected in the stream's buffer, and
+ * sent by a background thread as one chunk, together with any data written
+ * to the stream while the previous chunks were being sent. The target stream
+ * is flushed whenever there is no more data to send.
  */
 public class OutputStreamMultiplexer {
 
+	/**
+	 * Maximum length of one chunk.
+	 */
+	private static final int MAX_CHUNK = 65535;
+
+
 	/**
 	 * One of the combined partial streams.
 	 */
 	private class MultiplexOutputStream extends OutputStream {
 		private int id;
 
+		/**
+		 * Data written to this stream that was not sent yet.
+		 */
+		private byte[] buffer = new byte[MAX_CHUNK];
+		private int count = 0;
+
+		/**
+		 * True if this stream is in the queue of streams with data to send.
+		 */
+		private boolean queued = false;
+
 		private MultiplexOutputStream(int id) {
 			this.id = id;
 		}
 
 		public void write(int b) throws IOException {
-			writeToTarget(id, b);
+			writeToTarget(this, new byte[] {(byte) b}, 0, 1);
 		}
 
 		public void write(byte[] b, int off, int len) throws IOException {
-			writeToTarget(id, b, off, len);
+			writeToTarget(this, b, off, len);
 		}
 	}
 
 
 	private OutputStream target;
-	private Map<Integer, OutputStream> streams = new HashMap<Integer, OutputStream>();
+	private Map<Integer, MultiplexOutputStream> streams = new HashMap<Integer, MultiplexOutputStream>();
 
-	private BlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>();
+	/**
+	 * Streams with data to send, in the order in which they were written to.
+	 */
+	private Queue<MultiplexOutputStream> queue = new ArrayDeque<MultiplexOutputStream>();
 
 	/**
 	 * True when {@link #close} was called.
@@ -47,90 +73,80 @@ public class OutputStreamMultiplexer {
 	 */
 	private boolean streamClosed = false;
 
-	/**
-	 * Used to notify any waiting {@link #close} calls that the stream is now
-	 * closed.
-	 */
-	private Object streamClosedMonitor = new Object();
-
 	/**
 	 * An exception thrown by the underlining output stream. Rethrown by the
 	 * next attempt to write to any of the partial streams.
 	 */
 	private IOException exception;
 
-	/**
-	 * A background thread used for sending the queued data.
-	 */
-	private Thread sendingThread;
-
-	/**
-	 * System time of the next scheduled flush.
-	 */
-	private long nextFlush = -1;
-
 
 	/**
 	 * Create a new multiplexer which will send combined data from the partial
 	 * partial streams to the provided target output stream.
 	 * <p>
 	 * This automatically launches a background thread which will be used for
-	 * sending the data, and another background thread to periodically flush the
-	 * target stream (to prevent deadlocks).
+	 * sending the data.
 	 *
 	 * @param tgt  the target output stream
 	 */
-	public OutputStreamMultiplexer(final OutputStream tgt) {
-		this.target = tgt;
+	public OutputStreamMultiplexer(OutputStream tgt) {
+		this.target = new BufferedOutputStream(tgt, MAX_CHUNK + 3);
 
-		sendingThread = new Thread() {
+		Thread sendingThread = new Thread() {
 			public void run() {
+				byte[] chunk = new byte[MAX_CHUNK + 3];
+				boolean unflushed = false;
 				try {
 					while (true) {
-						if (closed && queue.isEmpty()) break;
-						try {
-							byte[] b = queue.take();
-							synchronized (target) {
-								target.write(b);
-								nextFlush = System.currentTimeMillis() + 500;
+						int len;
+						synchronized (OutputStreamMultiplexer.this) {
+							while (queue.isEmpty() && !closed && !unflushed) {
+								try {
+									OutputStreamMultiplexer.this.wait();
+								} catch (InterruptedException e) {}
 							}
-						} catch (InterruptedException e) {}
+							MultiplexOutputStream s = queue.poll();
+							if (s == null) {
+								len = -1;
+							} else {
+								len = s.count;
+								chunk[0] = (byte) s.id;
+								chunk[1] = (byte) (len >> 8);
+								chunk[2] = (byte) len;
+								System.arraycopy(s.buffer, 0, chunk, 3, len);
+								s.count = 0;
+								s.queued = false;
+								OutputStreamMultiplexer.this.notifyAll();
+							}
+						}
+
+						if (len != -1) {
+							target.write(chunk, 0, len + 3);
+							unflushed = true;
+						} else if (unflushed) {
+							// nothing more to send for now
+							target.flush();
+							unflushed = false;
+						} else {
+							break;
+						}
 					}
 				} catch (IOException e) {
-					exception = e;
-				}
-				if (closed) {
-					try {
-						target.close();
-					} catch (IOException e) {}
+					synchronized (OutputStreamMultiplexer.this) {
+						exception = e;
+						OutputStreamMultiplexer.this.notifyAll();
+					}
 				}
-				synchronized (streamClosedMonitor) {
+				try {
+					target.close();
+				} catch (IOException e) {}
+				synchronized (OutputStreamMultiplexer.this) {
 					streamClosed = true;
-					streamClosedMonitor.notifyAll();
+					OutputStreamMultiplexer.this.notifyAll();
 				}
 			}
 		};
 		sendingThread.start();
-
-		Thread flushingThread = new Thread() {
-			public void run() {
-				while (true) {
-					synchronized (target) {
-						if (nextFlush != -1 && System.currentTimeMillis() > nextFlush) {
-							try {
-								target.flush();
-								nextFlush = -1;
-							} catch (IOException e) {}
-						}
-					}
-					try {
-						Thread.sleep(500);
-					} catch (InterruptedException e) {}
-				}
-			};
-		};
-		flushingThread.setDaemon(true);
-		flushingThread.start();
 	}
 
 
@@ -140,7 +156,7 @@ public class OutputStreamMultiplexer {
 	 * @param id  ID of the partial stream (0 to 255)
 	 * @return    the partial stream
 	 */
-	public OutputStream getOutputStream(int id) {
+	synchronized public OutputStream getOutputStream(int id) {
 		if (id < 0 || id >= 256) {
 			throw new IllegalArgumentException("Multiplexing stream ID must be between 0 and 255.");
 		}
@@ -156,40 +172,47 @@ public class OutputStreamMultiplexer {
 	/**
 	 * Request to close the target output stream.
 	 * <p>
-	 * All queued write calls are completed before closing. This method blocks
-	 * until all of these calls finish and the stream is actually closed.
+	 * All data written before is sent before closing. This method blocks
+	 * until the data is sent and the stream is actually closed.
 	 */
 	synchronized public void close() {
 		closed = true;
-		sendingThread.interrupt();
-		synchronized (streamClosedMonitor) {
-			if (streamClosed) return;
+		notifyAll();
+		while (!streamClosed) {
 			try {
-				streamClosedMonitor.wait();
+				wait();
 			} catch (InterruptedException e) {}
 		}
 	}
 
 
-	synchronized private void writeToTarget(int id, int b) throws IOException {
-		if (closed) throw new IOException("Stream closed.");
-		if (exception != null) throw exception;
-		queue.add(new byte[] {(byte) (id&255), 0, 1, (byte) (b&255)});
-	}
-
+	/**
+	 * Add data to the buffer of a partial stream, waiting while the buffer
+	 * is full.
+	 */
+	synchronized private void writeToTarget(MultiplexOutputStream s, byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (closed) throw new IOException("Stream closed.");
+			if (exception != null) throw exception;
 
-	synchronized private void writeToTarget(int id, byte[] b, int off, int len) throws IOException {
-		if (closed) throw new IOException("Stream closed.");
-		if (exception != null) throw exception;
-		for (int cur = off; cur < off+len; cur += 65535) {
-			int curLen = Math.min(65535, off+len-cur);
-			byte[] q = new byte[curLen+3];
-			q[0] = (byte) (id & 255);
-			q[1] = (byte) ((curLen >> 8) & 255);
-			q[2] = (byte) (curLen & 255);
-			System.arraycopy(b, cur, q, 3, curLen);
-			queue.add(q);
+			int cur = Math.min(len, MAX_CHUNK - s.count);
+			if (cur == 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {}
+				continue;
+			}
+			System.arraycopy(b, off, s.buffer, s.count, cur);
+			s.count += cur;
+			off += cur;
+			len -= cur;
+
+			if (!s.queued) {
+				s.queued = true;
+				queue.add(s);
+				notifyAll();
+			}
 		}
 	}
 
-}
\ No newline at end of file
+}
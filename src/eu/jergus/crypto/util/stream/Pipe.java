@@ -0,0 +1,172 @@
+package eu.jergus.crypto.util.stream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An in-memory byte channel from one writing thread to one reading thread.
+ * <p>
+ * The data is passed through a circular buffer without locking: the writer
+ * only advances the tail and the reader only advances the head. A thread that
+ * has to wait (for data or for space) parks until the other side unparks it.
+ * The buffer is allocated by the first write, so unused pipes are cheap.
+ * <p>
+ * Several threads may use the same end of the pipe, but not at the same time
+ * (the streams serialize their calls).
+ */
+public class Pipe {
+
+	/**
+	 * The buffer, allocated by the first write. It is published to the
+	 * reader by the write of the tail.
+	 */
+	private volatile byte[] buf;
+	private final int size;
+	private final int mask;
+
+	/**
+	 * Total number of bytes read and written.
+	 */
+	private volatile long head = 0;
+	private volatile long tail = 0;
+
+	private volatile Thread waitingReader;
+	private volatile Thread waitingWriter;
+
+	private volatile boolean writerClosed = false;
+	private volatile boolean readerClosed = false;
+
+	private final InputStream in = new PipeInputStream();
+	private final OutputStream out = new PipeOutputStream();
+
+
+	/**
+	 * @param capacity  size of the buffer (rounded up to a power of two)
+	 */
+	public Pipe(int capacity) {
+		size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		mask = size - 1;
+	}
+
+
+	/**
+	 * Return the reading end of this pipe.
+	 */
+	public InputStream getInputStream() {
+		return in;
+	}
+
+	/**
+	 * Return the writing end of this pipe.
+	 */
+	public OutputStream getOutputStream() {
+		return out;
+	}
+
+
+	private class PipeInputStream extends InputStream {
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 255;
+		}
+
+		synchronized public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+			long h = head;
+			long available;
+			while ((available = tail - h) == 0) {
+				if (readerClosed) throw new IOException("Stream is closed.");
+				if (writerClosed) {
+					if (tail == h) return -1;
+					continue;
+				}
+				waitingReader = Thread.currentThread();
+				if (tail == h && !writerClosed && !readerClosed) {
+					LockSupport.park(this);
+				}
+				waitingReader = null;
+			}
+
+			byte[] data = buf;
+			int res = (int) Math.min(len, available);
+			int pos = (int) (h & mask);
+			int first = Math.min(res, size - pos);
+			System.arraycopy(data, pos, b, off, first);
+			System.arraycopy(data, 0, b, off + first, res - first);
+			head = h + res;
+
+			Thread writer = waitingWriter;
+			if (writer != null) {
+				LockSupport.unpark(writer);
+			}
+			return res;
+		}
+
+		public int available() {
+			return (int) (tail - head);
+		}
+
+		public void close() {
+			readerClosed = true;
+			wake();
+		}
+	}
+
+
+	private class PipeOutputStream extends OutputStream {
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		synchronized public void write(byte[] b, int off, int len) throws IOException {
+			byte[] data = buf;
+			if (data == null && len > 0) {
+				data = new byte[size];
+				buf = data;
+			}
+			while (len > 0) {
+				if (writerClosed || readerClosed) throw new IOException("Stream is closed.");
+				long t = tail;
+				int free = (int) (size - (t - head));
+				if (free == 0) {
+					waitingWriter = Thread.currentThread();
+					if (size == t - head && !readerClosed) {
+						LockSupport.park(this);
+					}
+					waitingWriter = null;
+					continue;
+				}
+
+				int cur = Math.min(len, free);
+				int pos = (int) (t & mask);
+				int first = Math.min(cur, size - pos);
+				System.arraycopy(b, off, data, pos, first);
+				System.arraycopy(b, off + first, data, 0, cur - first);
+				tail = t + cur;
+				off += cur;
+				len -= cur;
+
+				Thread reader = waitingReader;
+				if (reader != null) {
+					LockSupport.unpark(reader);
+				}
+			}
+		}
+
+		public void close() {
+			writerClosed = true;
+			wake();
+		}
+	}
+
+
+	private void wake() {
+		Thread t = waitingReader;
+		if (t != null) LockSupport.unpark(t);
+		t = waitingWriter;
+		if (t != null) LockSupport.unpark(t);
+	}
+
+}
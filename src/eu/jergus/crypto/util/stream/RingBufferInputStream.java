@@ -0,0 +1,309 @@
+package eu.jergus.crypto.util.stream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An input stream reading the data supplied by another thread, stored in a
+ * fixed-size circular buffer.
+ * <p>
+ * The supplying side can either add data without blocking (see
+ * {@link #offer}), and get notified when space becomes available, or block
+ * until all of its data fits in the buffer (see {@link #write}), or enlarge
+ * the buffer as needed, possibly up to a limit (see {@link #append}).
+ * <p>
+ * The buffer is allocated when the first data is added, so streams that are
+ * never used take no space.
+ */
+public class RingBufferInputStream extends InputStream {
+
+	/**
+	 * The buffer, or null until the first data is added.
+	 */
+	private byte[] buf;
+	private final int initialCapacity;
+
+	/**
+	 * Position of the first unread byte.
+	 */
+	private int head = 0;
+
+	/**
+	 * Number of unread bytes.
+	 */
+	private int count = 0;
+
+	/**
+	 * True when the supplying side signalled the end of data.
+	 */
+	private boolean end = false;
+
+	/**
+	 * True when {@link #close} was called.
+	 */
+	private boolean closed = false;
+
+	/**
+	 * An exception reported by the supplying side. Rethrown by the read calls
+	 * once all the data before it is read.
+	 */
+	private IOException exception;
+
+	/**
+	 * Called when space becomes available after an {@link #offer} call that
+	 * did not fit.
+	 */
+	private Runnable spaceListener;
+
+	private boolean waitingForSpace = false;
+
+
+	/**
+	 * @param capacity  (initial) size of the buffer
+	 */
+	public RingBufferInputStream(int capacity) {
+		initialCapacity = capacity;
+	}
+
+
+	/**
+	 * Set the action run when space becomes available after an incomplete
+	 * {@link #offer}. It is run by the reading thread, so it should only hand
+	 * the work over to the supplying thread.
+	 */
+	synchronized public void setSpaceListener(Runnable listener) {
+		spaceListener = listener;
+	}
+
+
+	public int read() throws IOException {
+		Runnable listener;
+		int res;
+		synchronized (this) {
+			if (!await()) return -1;
+			res = buf[head] & 255;
+			listener = consumed(1);
+		}
+		if (listener != null) {
+			listener.run();
+		}
+		return res;
+	}
+
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		Runnable listener;
+		int res;
+		synchronized (this) {
+			if (len == 0) return 0;
+			if (!await()) return -1;
+			res = Math.min(len, count);
+			int first = Math.min(res, buf.length - head);
+			System.arraycopy(buf, head, b, off, first);
+			System.arraycopy(buf, 0, b, off + first, res - first);
+			listener = consumed(res);
+		}
+		if (listener != null) {
+			listener.run();
+		}
+		return res;
+	}
+
+
+	synchronized public int available() {
+		return count;
+	}
+
+
+	/**
+	 * Close the stream. All subsequent read calls throw an exception, and the
+	 * supplied data is discarded.
+	 */
+	synchronized public void close() {
+		closed = true;
+		count = 0;
+		notifyAll();
+	}
+
+
+	/**
+	 * Wait until some data is available (must hold the lock).
+	 *
+	 * @return false if the end of data was reached
+	 */
+	private boolean await() throws IOException {
+		while (count == 0) {
+			if (closed) throw new IOException("Stream is closed.");
+			if (exception != null) throw exception;
+			if (end) return false;
+			try {
+				wait();
+			} catch (InterruptedException e) {
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Remove read bytes from the buffer (must hold the lock).
+	 *
+	 * @return the space listener, if it should be run
+	 */
+	private Runnable consumed(int len) {
+		head = (head + len) % buf.length;
+		count -= len;
+		notifyAll();
+		if (waitingForSpace) {
+			waitingForSpace = false;
+			return spaceListener;
+		}
+		return null;
+	}
+
+
+	/**
+	 * Add as much of the given data as fits in the buffer, without blocking.
+	 * <p>
+	 * If not all of it fits, the space listener will be run when some space
+	 * becomes available.
+	 *
+	 * @return number of bytes added
+	 */
+	synchronized public int offer(byte[] b, int off, int len) {
+		allocate();
+		int res = Math.min(len, buf.length - count);
+		int tail = (head + count) % buf.length;
+		int first = Math.min(res, buf.length - tail);
+		System.arraycopy(b, off, buf, tail, first);
+		System.arraycopy(b, off + first, buf, 0, res - first);
+		added(res, len);
+		return res;
+	}
+
+
+	/**
+	 * Add as much of the remaining data of the given buffer as fits, without
+	 * blocking (the buffer's position is advanced accordingly).
+	 *
+	 * @return number of bytes added
+	 * @see #offer(byte[], int, int)
+	 */
+	synchronized public int offer(ByteBuffer src) {
+		allocate();
+		int len = src.remaining();
+		int res = Math.min(len, buf.length - count);
+		int tail = (head + count) % buf.length;
+		int first = Math.min(res, buf.length - tail);
+		src.get(buf, tail, first);
+		src.get(buf, 0, res - first);
+		added(res, len);
+		return res;
+	}
+
+
+	/**
+	 * Add the given data, blocking while the buffer is full.
+	 *
+	 * @throws IOException  if the stream was closed
+	 */
+	synchronized public void write(byte[] b, int off, int len) throws IOException {
+		allocate();
+		while (len > 0) {
+			if (closed) throw new IOException("Stream is closed.");
+			if (count == buf.length) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+				}
+				continue;
+			}
+			int added = offer(b, off, len);
+			off += added;
+			len -= added;
+		}
+	}
+
+
+	/**
+	 * Add the given data without blocking, enlarging the buffer if it does
+	 * not fit.
+	 */
+	synchronized public void append(byte[] b, int off, int len) {
+		append(b, off, len, Integer.MAX_VALUE);
+	}
+
+
+	/**
+	 * Add the given data without blocking, enlarging the buffer by at most
+	 * the given number of bytes if it does not fit.
+	 *
+	 * @return number of bytes the buffer was enlarged by, or -1 if the data
+	 *         would not fit even then (none of it is added)
+	 */
+	synchronized public int append(byte[] b, int off, int len, int maxGrowth) {
+		allocate();
+		int grown = 0;
+		if (len > buf.length - count && !closed) {
+			long limit = Math.min((long) buf.length + maxGrowth, Integer.MAX_VALUE);
+			if ((long) count + len > limit) return -1;
+			int size = (int) Math.min(Math.max(2L * buf.length, count + len), limit);
+			byte[] newBuf = new byte[size];
+			int first = Math.min(count, buf.length - head);
+			System.arraycopy(buf, head, newBuf, 0, first);
+			System.arraycopy(buf, 0, newBuf, first, count - first);
+			grown = size - buf.length;
+			buf = newBuf;
+			head = 0;
+		}
+		offer(b, off, len);
+		return grown;
+	}
+
+
+	/**
+	 * Allocate the buffer if no data was added yet (must hold the lock).
+	 */
+	private void allocate() {
+		if (buf == null) {
+			buf = new byte[initialCapacity];
+		}
+	}
+
+
+	private void added(int added, int requested) {
+		if (closed) {
+			count = 0;
+			return;
+		}
+		count += added;
+		if (added < requested) {
+			waitingForSpace = true;
+		}
+		if (added > 0) {
+			notifyAll();
+		}
+	}
+
+
+	/**
+	 * Signal the end of data: read calls return -1 once the buffered data is
+	 * read.
+	 */
+	synchronized public void setEnd() {
+		end = true;
+		notifyAll();
+	}
+
+
+	/**
+	 * Report a failure of the supplying side: read calls throw the given
+	 * exception once the buffered data is read.
+	 */
+	synchronized public void setException(IOException e) {
+		exception = e;
+		notifyAll();
+	}
+
+}
@@ -17,6 +17,7 @@ import android.widget.TextView;
 import eu.jergus.cryperm.Cryperm;
 import eu.jergus.crypto.exception.ProtocolException;
 import eu.jergus.crypto.util.ConnectionManager;
+import eu.jergus.crypto.util.SessionManager;
 
 public class TestPermutationActivity extends Activity {
 	// private PerformanceTestApplication app = (PerformanceTestApplication)
@@ -28,6 +29,7 @@ public class TestPermutationActivity extends Activity {
 	private int proofIterations;
 	private int permKeySize;
 	private String[] addresses;
+	private SessionManager[] sessionManagers;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -51,6 +53,7 @@ public class TestPermutationActivity extends Activity {
 		for (int i = 0; i < partCount; i++) {
 			addresses[i] = "localhost:" + (7000 + i);
 		}
+		sessionManagers = new SessionManager[partCount];
 		// execute test
 		// Debug.startMethodTracing("PerformanceTest");
 		this.executeTests();
@@ -73,14 +76,20 @@ public class TestPermutationActivity extends Activity {
 			localId = params[0];
 			Log.d(TestKeyGeneratorExecutor.class.getSimpleName(), "Executing key generator test.");
 			try {
-				ConnectionManager cm = new ConnectionManager(localId,
-						addresses, 2);
-				MessageSender messageSender = new MessageSender(cm, null,
-						partCount, localId);
-				SessionKeyGenerator keyGenerator = new SessionKeyGenerator(
-						messageSender, localId, partCount);
-				startTime = System.currentTimeMillis();
-				AEScipher aesCipher = new AEScipher(keyGenerator);
+				sessionManagers[localId] = new SessionManager(
+						new ConnectionManager(localId, addresses));
+				ConnectionManager cm = sessionManagers[localId].openSession(
+						0, 1);
+				try {
+					MessageSender messageSender = new MessageSender(cm, null,
+							partCount, localId);
+					SessionKeyGenerator keyGenerator = new SessionKeyGenerator(
+							messageSender, localId, partCount);
+					startTime = System.currentTimeMillis();
+					AEScipher aesCipher = new AEScipher(keyGenerator);
+				} finally {
+					cm.close();
+				}
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -115,13 +124,12 @@ public class TestPermutationActivity extends Activity {
 		protected Long[] doInBackground(Integer... params) {
 			localId = params[0];
 			Long[] results = new Long[2];
+			ConnectionManager cm = sessionManagers[localId].openSession(1, 1);
 			try {
-				ConnectionManager cm = new ConnectionManager(localId,
-						addresses, 2);
 				startTime = System.currentTimeMillis();
 				Cryperm cryperm = new Cryperm(localId,
-						cm.getPartialInputStreams(1),
-						cm.getPartialOutputStreams(1), partCount, permLength,
+						cm.getPartialInputStreams(0),
+						cm.getPartialOutputStreams(0), partCount, permLength,
 						permKeySize, proofIterations);
 				cryperm.uncover(0);
 				firstUncoverTime = System.currentTimeMillis();
@@ -129,10 +137,10 @@ public class TestPermutationActivity extends Activity {
 				long uncoverTime = System.currentTimeMillis()
 						- firstUncoverTime;
 				results[1] = uncoverTime;
-			} catch (IOException e) {
-				e.printStackTrace();
 			} catch (ProtocolException e) {
 				e.printStackTrace();
+			} finally {
+				cm.close();
 			}
 
 			results[0] = System.currentTimeMillis() - startTime - results[1];
@@ -0,0 +1,124 @@
+package sk.upjs.bocko.protocol;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import eu.jergus.cryperm.Cryperm;
+import eu.jergus.crypto.util.ConnectionManager;
+import eu.jergus.crypto.util.SessionManager;
+
+
+/**
+ * Measures how many Cryperm games per second the participants can play when
+ * all games run as concurrent sessions over one connection mesh.
+ * <p>
+ * All participants run in this process and connect over TCP on localhost.
+ * Arguments (all optional): number of participants, permutation size, number
+ * of games, number of concurrent games, key size, proof iterations.
+ */
+public class CrypermThroughputTest {
+
+	/**
+	 * Time limit for connecting the participants, in milliseconds.
+	 */
+	private static final int CONNECT_TIMEOUT = 30000;
+
+	public static void main(String[] args) throws Exception {
+		final int n = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		final int size = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		final int games = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		final int concurrent = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+		final int keySize = args.length > 4 ? Integer.parseInt(args[4]) : 256;
+		final int proofIterations = args.length > 5 ? Integer.parseInt(args[5]) : 8;
+
+		final String[] addresses = new String[n];
+		for (int i = 0; i < n; i++) {
+			addresses[i] = "localhost:" + (7000 + i);
+		}
+
+		// connect all participants
+		final SessionManager[] sessionManagers = new SessionManager[n];
+		Thread[] threads = new Thread[n];
+		for (int i = 0; i < n; i++) {
+			final int localId = i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						sessionManagers[localId] = new SessionManager(
+								new ConnectionManager(localId, addresses, 1,
+										CONNECT_TIMEOUT));
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		for (SessionManager sessionManager : sessionManagers) {
+			if (sessionManager == null) {
+				System.err.println("Could not connect all participants.");
+				System.exit(1);
+			}
+		}
+
+		// play the games; game g is played by the worker g % concurrent of
+		// each participant
+		// number of failed games, each counted once even if it fails for
+		// several participants
+		final AtomicInteger failed = new AtomicInteger(0);
+		final AtomicIntegerArray gameFailed = new AtomicIntegerArray(games);
+		long startTime = System.currentTimeMillis();
+
+		threads = new Thread[n * concurrent];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < concurrent; j++) {
+				final int localId = i;
+				final int worker = j;
+				threads[i * concurrent + j] = new Thread() {
+					public void run() {
+						for (int g = worker; g < games; g += concurrent) {
+							try {
+								ConnectionManager cm = sessionManagers[localId]
+										.openSession(g, 1);
+								Cryperm cryperm = new Cryperm(localId,
+										cm.getPartialInputStreams(0),
+										cm.getPartialOutputStreams(0), n,
+										size, keySize, proofIterations, 1, 0);
+								for (int e = 0; e < size; e++) {
+									cryperm.uncover(e % n, e);
+								}
+								cm.close();
+							} catch (Exception e) {
+								if (gameFailed.getAndSet(g, 1) == 0) {
+									failed.incrementAndGet();
+								}
+								e.printStackTrace();
+							}
+						}
+					}
+				};
+				threads[i * concurrent + j].start();
+			}
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+
+		long time = System.currentTimeMillis() - startTime;
+		System.out.println("Participants: " + n + ", permutation size: "
+				+ size + ", concurrent games: " + concurrent);
+		System.out.println("Games: " + games + " in " + time + " ms ("
+				+ failed.get() + " failed)");
+		System.out.println("Games per second: "
+				+ ((games - failed.get()) * 1000.0 / time));
+
+		for (SessionManager sessionManager : sessionManagers) {
+			sessionManager.close();
+		}
+		System.exit(0);
+	}
+
+}